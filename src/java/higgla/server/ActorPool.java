@@ -0,0 +1,75 @@
+package higgla.server;
+
+import juglr.Actor;
+import juglr.Address;
+import juglr.AddressAlreadyOwnedException;
+import juglr.DelegatingActor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of interchangeable actors behind a single named address. Messages
+ * sent to the pool are handed to the members in a round robin fashion, so
+ * that requests for one base can be processed concurrently and a slow request
+ * does not block the requests queued behind it.
+ * <p/>
+ * The pool grabs its named address when {@code start()} is called. If the
+ * name is already owned by another pool the pool and all its members retract
+ * silently from the bus, just like the single actors it replaces.
+ * <p/>
+ * The number of members in pools created by the gateway actors is
+ * {@link #DEFAULT_SIZE}. It can be set with the system property
+ * {@code higgla.pool.size} and defaults to the number of available processors.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 3, 2010
+ */
+public class ActorPool extends DelegatingActor {
+
+    public static final int DEFAULT_SIZE = Math.max(1, Integer.getInteger(
+           "higgla.pool.size", Runtime.getRuntime().availableProcessors()));
+
+    private String name;
+    private List<Address> members;
+
+    public ActorPool(String name, List<Address> members) {
+        super(members);
+        this.name = name;
+        this.members = members;
+    }
+
+    /**
+     * Create a pool of the given actors. The members are not started before
+     * the pool itself is started.
+     * @param name the named address the pool should listen on
+     * @param members the actors to delegate messages to
+     * @return a new pool which must be started with
+     *         {@code MessageBus.start(pool.getAddress())}
+     */
+    public static ActorPool newForActors(String name, Actor... members) {
+        List<Address> addresses = new ArrayList<Address>(members.length);
+        for (Actor member : members) {
+            addresses.add(member.getAddress());
+        }
+        return new ActorPool(name, addresses);
+    }
+
+    @Override
+    public void start() {
+        try {
+            getBus().allocateNamedAddress(this, name);
+        } catch (AddressAlreadyOwnedException e) {
+            // Another pool is already running under this name.
+            // Retract the pool and its members from the bus silently
+            for (Address member : members) {
+                getBus().freeAddress(member);
+            }
+            getBus().freeAddress(getAddress());
+            return;
+        }
+
+        // DelegatingActor starts the members
+        super.start();
+    }
+}
@@ -6,6 +6,16 @@ import juglr.Message;
 import juglr.net.HTTP;
 import juglr.net.HTTPResponse;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * Abstract base class for actors that handle operations for a given base.
  *
@@ -49,4 +59,107 @@ public abstract class BaseActor extends Actor {
         box.put(field, String.format(msg, format));
         return box;
     }
+
+    /**
+     * Read the {@code _fields} projection of a request
+     * @param request the request MAP
+     * @return the set of top level fields to return for each box or
+     *         {@code null} if the request does not restrict the fields
+     * @throws Box.TypeException if {@code _fields} is not a LIST of strings
+     */
+    protected Set<String> parseFields(Box request) {
+        Box fields = request.get("_fields");
+        if (fields == null) {
+            return null;
+        }
+
+        Set<String> result = new HashSet<String>();
+        for (Box field : fields.getList()) {
+            result.add(field.getString());
+        }
+        return result;
+    }
+
+    /**
+     * Execute a collection of named jobs in parallel and collect their
+     * results in a new Box of MAP type, mapping the name of each job to its
+     * result.
+     * <p/>
+     * Actors are run by the fork/join pool of the message bus, so the jobs
+     * are simply forked into that pool, letting idle bus workers steal them.
+     * If there is only one job, or if the calling thread is not a fork/join
+     * worker, the jobs are executed one by one in the calling thread.
+     * <p/>
+     * If any of the jobs fail the exception of the first failed job (in
+     * iteration order of {@code jobs}) is rethrown.
+     * @param jobs a map of job names to jobs
+     * @return a newly allocated Box of MAP type with the job results
+     * @throws IOException if a job threw an IOException
+     */
+    protected Box invokeAll(Map<String,Callable<Box>> jobs)
+                                                           throws IOException {
+        Box results = Box.newMap();
+
+        if (jobs.size() == 1 || !ForkJoinTask.inForkJoinPool()) {
+            for (Map.Entry<String,Callable<Box>> job : jobs.entrySet()) {
+                try {
+                    results.put(job.getKey(), job.getValue().call());
+                } catch (Exception e) {
+                    rethrow(e);
+                }
+            }
+            return results;
+        }
+
+        List<Job> tasks = new ArrayList<Job>(jobs.size());
+        for (Map.Entry<String,Callable<Box>> job : jobs.entrySet()) {
+            tasks.add(new Job(job.getKey(), job.getValue()));
+        }
+
+        ForkJoinTask.invokeAll(tasks);
+        for (Job task : tasks) {
+            if (task.error != null) {
+                rethrow(task.error);
+            }
+            results.put(task.name, task.getRawResult());
+        }
+
+        return results;
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t instanceof IOException) {
+            throw (IOException)t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        } else if (t instanceof Error) {
+            throw (Error)t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    /* Adapts a named Callable to a fork/join task. Errors are kept in the
+     * task instead of being thrown so that all jobs are always joined */
+    private static class Job extends RecursiveTask<Box> {
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private Callable<Box> callable;
+        private Throwable error;
+
+        public Job(String name, Callable<Box> callable) {
+            this.name = name;
+            this.callable = callable;
+        }
+
+        @Override
+        protected Box compute() {
+            try {
+                return callable.call();
+            } catch (Throwable t) {
+                error = t;
+                return null;
+            }
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package higgla.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes the higgla.meta file of a base. The meta file holds
+ * the last revision number handed out in the base.
+ * <p/>
+ * The higgla.meta file keeps it's file format version in an integer
+ * in the first 4 bytes. The higgla.meta format version 1 simply
+ * stores the last known revision number as a long in the next 8 bytes
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 5, 2010
+ */
+public class BaseMeta {
+
+    /** The higgla.meta file must always be exactly 2048 bytes in order
+     * to guard against disk-full scenarios.
+     * We also reserve a byte array of that size in memory to provide
+     * durability against OOM. */
+    private static final int META_SIZE = 2048;
+    private static final int HIGGLA_META_VERSION = 1;
+    private ByteBuffer metaBuffer;
+    private File metaFile;
+
+    public BaseMeta(File baseDir) {
+        // Pre-allocate resources for the higgla.meta file
+        metaBuffer = ByteBuffer.allocate(META_SIZE);
+        metaFile = new File(baseDir, "higgla.meta");
+    }
+
+    /**
+     * Write index metadata to the file higgla.meta - most notably our
+     * revision number.
+     * @param lastRevision the last revision number handed out in the base
+     * @throws IOException bad bad bad
+     */
+    public void write(long lastRevision) throws IOException {
+        metaBuffer.clear();
+        metaBuffer.putInt(HIGGLA_META_VERSION);
+        metaBuffer.putLong(lastRevision);
+
+        // Pad the file to META_SIZE
+        while (metaBuffer.remaining() > 0) {
+            metaBuffer.putInt(0);
+        }
+        metaBuffer.flip();
+
+        FileChannel f = new FileOutputStream(metaFile).getChannel();
+        try {
+            f.write(metaBuffer);
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Read the last known revision from the higgla.meta file or return 0
+     * if the file doesn't exist
+     * @return the last revision number handed out in the base
+     * @throws IOException if the file can not be read or has an unsupported
+     *                     format version
+     */
+    public long readLastRevision() throws IOException {
+        if (!metaFile.exists()) {
+            return 0;
+        }
+
+        metaBuffer.clear();
+        FileChannel f = new FileInputStream(metaFile).getChannel();
+        try {
+            f.read(metaBuffer);
+        } finally {
+            f.close();
+        }
+        metaBuffer.flip();
+
+        int metaFileVersion = metaBuffer.getInt();
+        if (metaFileVersion != HIGGLA_META_VERSION) {
+            throw new IOException(
+                    "Unsupported version number found in "+metaFile);
+        }
+        long lastRev = metaBuffer.getLong();
+        return lastRev;
+    }
+}
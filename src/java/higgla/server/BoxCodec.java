@@ -0,0 +1,617 @@
+package higgla.server;
+
+import juglr.Box;
+import juglr.BoxParser;
+import juglr.JSonBoxParser;
+import juglr.MessageFormatException;
+import org.apache.lucene.document.Fieldable;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of boxes, used for the stored {@code _body} field.
+ * Decoding a binary body is considerably cheaper than parsing JSON, and
+ * large bodies are compressed.
+ * <p/>
+ * An encoded box starts with a header byte holding the format version in
+ * the lower bits and the flag {@code 0x80} if the rest is compressed. A
+ * compressed body has the uncompressed length as a 4 byte int followed by
+ * the deflated data. The uncompressed data is a single value:
+ * <ul>
+ *   <li>A type tag byte, one of the {@code TAG_*} constants</li>
+ *   <li>INT: the zig-zag varint encoded long</li>
+ *   <li>FLOAT: the 8 byte IEEE 754 representation of the double</li>
+ *   <li>TRUE, FALSE: no data</li>
+ *   <li>STRING: a varint byte length followed by the UTF-8 bytes</li>
+ *   <li>MAP: a 4 byte length of the rest of the map, a varint entry count,
+ *       and for each entry the key encoded as a STRING without tag
+ *       followed by the value</li>
+ *   <li>LIST: a 4 byte length of the rest of the list, a varint element count
+ *       and the values</li>
+ * </ul>
+ * The length prefixes make it possible to skip a value without decoding it.
+ * <p/>
+ * {@code decode()} methods are thread safe. {@link #encode(Box)} reuses
+ * internal buffers so each thread must use its own codec for encoding.
+ * Bodies with an uncompressed size of at least
+ * {@code higgla.body.compress} bytes are compressed, the default is 1024.
+ * Set it to 0 to disable compression.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 8, 2010
+ */
+public class BoxCodec {
+
+    static final int COMPRESS_THRESHOLD = Integer.getInteger(
+                                                 "higgla.body.compress", 1024);
+
+    static final byte VERSION = 1;
+    static final byte COMPRESSED = (byte)0x80;
+
+    static final byte TAG_INT = 1;
+    static final byte TAG_FLOAT = 2;
+    static final byte TAG_TRUE = 3;
+    static final byte TAG_FALSE = 4;
+    static final byte TAG_STRING = 5;
+    static final byte TAG_MAP = 6;
+    static final byte TAG_LIST = 7;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final BoxParser legacyParser = new JSonBoxParser();
+
+    private byte[] buf;
+    private int pos;
+    private byte[] deflated;
+    private Deflater deflater;
+
+    public BoxCodec() {
+        buf = new byte[1024];
+        deflated = new byte[1024];
+    }
+
+    /**
+     * Encode {@code box} in the binary body format
+     * @param box the box to encode
+     * @return a new array holding the encoded box
+     */
+    public byte[] encode(Box box) {
+        pos = 0;
+        writeByte(VERSION);
+        writeValue(box);
+
+        int rawLength = pos - 1;
+        if (COMPRESS_THRESHOLD <= 0 || rawLength < COMPRESS_THRESHOLD) {
+            byte[] result = new byte[pos];
+            System.arraycopy(buf, 0, result, 0, pos);
+            return result;
+        }
+
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(buf, 1, rawLength);
+        deflater.finish();
+
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == deflated.length) {
+                byte[] tmp = new byte[2*deflated.length];
+                System.arraycopy(deflated, 0, tmp, 0, len);
+                deflated = tmp;
+            }
+            len += deflater.deflate(deflated, len, deflated.length - len);
+        }
+
+        if (len + 4 >= rawLength) {
+            // Compression did not pay off
+            byte[] result = new byte[pos];
+            System.arraycopy(buf, 0, result, 0, pos);
+            return result;
+        }
+
+        byte[] result = new byte[len + 5];
+        result[0] = (byte)(VERSION | COMPRESSED);
+        putInt(result, 1, rawLength);
+        System.arraycopy(deflated, 0, result, 5, len);
+        return result;
+    }
+
+    /**
+     * Decode the stored {@code _body} field of a document. Bodies written
+     * before the binary format was introduced are stored as JSON strings and
+     * are parsed as such
+     * @param body the stored body field
+     * @return the decoded box
+     * @throws MessageFormatException if the body is corrupt
+     */
+    public Box decode(Fieldable body) {
+        return decode(body, null);
+    }
+
+    /**
+     * Decode only the top level fields {@code fields} of the stored
+     * {@code _body} field of a document. The values of other fields in
+     * binary bodies are skipped without being decoded
+     * @param body the stored body field
+     * @param fields the names of the fields to include or {@code null}
+     *               to decode the whole body
+     * @return the decoded box
+     * @throws MessageFormatException if the body is corrupt
+     */
+    public Box decode(Fieldable body, Set<String> fields) {
+        if (!body.isBinary()) {
+            return project(legacyParser.parse(body.stringValue()), fields);
+        }
+        Input in = open(body.getBinaryValue(),
+                        body.getBinaryOffset(), body.getBinaryLength());
+        return fields == null ? in.readValue() : in.readFields(fields);
+    }
+
+    /**
+     * Decode a box encoded with {@link #encode(Box)}
+     * @param data array holding the encoded box
+     * @param offset offset of the encoded box in {@code data}
+     * @param length length of the encoded box
+     * @return the decoded box
+     * @throws MessageFormatException if the data is corrupt
+     */
+    public Box decode(byte[] data, int offset, int length) {
+        Input in = open(data, offset, length);
+        return in.readValue();
+    }
+
+    /**
+     * Append the JSON text of a stored {@code _body} field to {@code out}
+     * without decoding it into a box. Bodies stored as JSON strings are
+     * copied verbatim
+     * @param body the stored body field
+     * @param out the response to append the JSON text to
+     * @throws MessageFormatException if the body is corrupt
+     */
+    public void writeJson(Fieldable body, RawJsonBox out) {
+        writeJson(body, out, null);
+    }
+
+    /**
+     * Append the JSON text of the top level fields {@code fields} of a
+     * stored {@code _body} field to {@code out}. The values of other fields
+     * in binary bodies are skipped without being transcoded
+     * @param body the stored body field
+     * @param out the response to append the JSON text to
+     * @param fields the names of the fields to include or {@code null}
+     *               to include the whole body
+     * @throws MessageFormatException if the body is corrupt
+     */
+    public void writeJson(Fieldable body, RawJsonBox out, Set<String> fields) {
+        if (!body.isBinary()) {
+            if (fields == null) {
+                out.appendRaw(body.stringValue());
+            } else {
+                out.appendBox(
+                      project(legacyParser.parse(body.stringValue()), fields));
+            }
+            return;
+        }
+        Input in = open(body.getBinaryValue(),
+                        body.getBinaryOffset(), body.getBinaryLength());
+        if (fields == null) {
+            in.writeJson(out);
+        } else {
+            in.writeJsonFields(out, fields);
+        }
+    }
+
+    /* Drop all top level fields of a MAP not in 'fields' */
+    private static Box project(Box box, Set<String> fields) {
+        if (fields == null || box.getType() != Box.Type.MAP) {
+            return box;
+        }
+        Box result = Box.newMap();
+        for (String field : fields) {
+            Box value = box.get(field);
+            if (value != null) {
+                result.put(field, value);
+            }
+        }
+        return result;
+    }
+
+    /* Return an Input positioned at the first value tag of an encoded box,
+     * inflating the data if needed */
+    Input open(byte[] data, int offset, int length) {
+        if (length < 2) {
+            throw new MessageFormatException("Truncated box data");
+        }
+
+        byte header = data[offset];
+        if ((header & ~COMPRESSED) != VERSION) {
+            throw new MessageFormatException(
+                               "Unsupported box format version " + header);
+        }
+
+        if ((header & COMPRESSED) == 0) {
+            return new Input(data, offset + 1, offset + length);
+        }
+
+        int rawLength = getInt(data, offset + 1);
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset + 5, length - 5);
+            int len = 0;
+            while (len < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, len, rawLength - len);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                len += n;
+            }
+            if (len != rawLength) {
+                throw new MessageFormatException("Truncated compressed box");
+            }
+        } catch (DataFormatException e) {
+            throw new MessageFormatException(
+                             "Corrupt compressed box: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        return new Input(raw, 0, rawLength);
+    }
+
+    private void writeValue(Box box) {
+        switch (box.getType()) {
+            case INT:
+                writeByte(TAG_INT);
+                writeVarLong(zigZag(box.getLong()));
+                break;
+            case FLOAT:
+                writeByte(TAG_FLOAT);
+                long bits = Double.doubleToLongBits(box.getFloat());
+                ensure(8);
+                putInt(buf, pos, (int)(bits >>> 32));
+                putInt(buf, pos + 4, (int)bits);
+                pos += 8;
+                break;
+            case BOOLEAN:
+                writeByte(box.getBoolean() ? TAG_TRUE : TAG_FALSE);
+                break;
+            case STRING:
+                writeByte(TAG_STRING);
+                writeString(box.getString());
+                break;
+            case MAP:
+                writeByte(TAG_MAP);
+                int mapStart = reserveLength();
+                Map<String,Box> map = box.getMap();
+                writeVarLong(map.size());
+                for (Map.Entry<String,Box> entry : map.entrySet()) {
+                    writeString(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+                patchLength(mapStart);
+                break;
+            case LIST:
+                writeByte(TAG_LIST);
+                int listStart = reserveLength();
+                List<Box> list = box.getList();
+                writeVarLong(list.size());
+                for (Box child : list) {
+                    writeValue(child);
+                }
+                patchLength(listStart);
+                break;
+            default:
+                throw new MessageFormatException(
+                                     "Unsupported box type " + box.getType());
+        }
+    }
+
+    private void writeString(String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        writeVarLong(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeByte(byte b) {
+        ensure(1);
+        buf[pos++] = b;
+    }
+
+    private void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte)value;
+    }
+
+    private int reserveLength() {
+        ensure(4);
+        pos += 4;
+        return pos;
+    }
+
+    /* Write the number of bytes since 'start' in the 4 bytes before it */
+    private void patchLength(int start) {
+        putInt(buf, start - 4, pos - start);
+    }
+
+    private void ensure(int needed) {
+        if (pos + needed > buf.length) {
+            byte[] tmp = new byte[Math.max(2*buf.length, pos + needed)];
+            System.arraycopy(buf, 0, tmp, 0, pos);
+            buf = tmp;
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte)(value >>> 24);
+        data[offset + 1] = (byte)(value >>> 16);
+        data[offset + 2] = (byte)(value >>> 8);
+        data[offset + 3] = (byte)value;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) |
+               ((data[offset + 1] & 0xFF) << 16) |
+               ((data[offset + 2] & 0xFF) << 8) |
+               (data[offset + 3] & 0xFF);
+    }
+
+    /* Cursor over uncompressed box data */
+    static class Input {
+        final byte[] data;
+        int pos;
+        final int end;
+
+        Input(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        Box readValue() {
+            byte tag = readByte();
+            switch (tag) {
+                case TAG_INT:
+                    return new Box(unZigZag(readVarLong()));
+                case TAG_FLOAT:
+                    check(8);
+                    long bits = ((long)getInt(data, pos) << 32) |
+                                (getInt(data, pos + 4) & 0xFFFFFFFFL);
+                    pos += 8;
+                    return new Box(Double.longBitsToDouble(bits));
+                case TAG_TRUE:
+                    return new Box(true);
+                case TAG_FALSE:
+                    return new Box(false);
+                case TAG_STRING:
+                    return new Box(readString());
+                case TAG_MAP:
+                    readLength();
+                    Box map = Box.newMap();
+                    for (long n = readVarLong(); n > 0; n--) {
+                        String key = readString();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                case TAG_LIST:
+                    readLength();
+                    Box list = Box.newList();
+                    for (long n = readVarLong(); n > 0; n--) {
+                        list.add(readValue());
+                    }
+                    return list;
+                default:
+                    throw new MessageFormatException(
+                                              "Unknown box type tag " + tag);
+            }
+        }
+
+        /* Transcode the next value to JSON text */
+        void writeJson(RawJsonBox out) {
+            byte tag = readByte();
+            switch (tag) {
+                case TAG_INT:
+                    out.append(unZigZag(readVarLong()));
+                    break;
+                case TAG_FLOAT:
+                    check(8);
+                    long bits = ((long)getInt(data, pos) << 32) |
+                                (getInt(data, pos + 4) & 0xFFFFFFFFL);
+                    pos += 8;
+                    out.append(Double.longBitsToDouble(bits));
+                    break;
+                case TAG_TRUE:
+                    out.append(true);
+                    break;
+                case TAG_FALSE:
+                    out.append(false);
+                    break;
+                case TAG_STRING:
+                    writeJsonString(out);
+                    break;
+                case TAG_MAP:
+                    readLength();
+                    out.append('{');
+                    for (long n = readVarLong(); n > 0; n--) {
+                        writeJsonString(out);
+                        out.append(':');
+                        writeJson(out);
+                        if (n > 1) {
+                            out.append(',');
+                        }
+                    }
+                    out.append('}');
+                    break;
+                case TAG_LIST:
+                    readLength();
+                    out.append('[');
+                    for (long n = readVarLong(); n > 0; n--) {
+                        writeJson(out);
+                        if (n > 1) {
+                            out.append(',');
+                        }
+                    }
+                    out.append(']');
+                    break;
+                default:
+                    throw new MessageFormatException(
+                                              "Unknown box type tag " + tag);
+            }
+        }
+
+        /* Read the next value, which must be a MAP, including only the
+         * entries in 'fields' */
+        Box readFields(Set<String> fields) {
+            if (peekTag() != TAG_MAP) {
+                return readValue();
+            }
+
+            readByte();
+            readLength();
+            Box map = Box.newMap();
+            for (long n = readVarLong(); n > 0; n--) {
+                String key = readString();
+                if (fields.contains(key)) {
+                    map.put(key, readValue());
+                } else {
+                    skipValue();
+                }
+            }
+            return map;
+        }
+
+        /* Transcode the next value, which must be a MAP, including only
+         * the entries in 'fields' */
+        void writeJsonFields(RawJsonBox out, Set<String> fields) {
+            if (peekTag() != TAG_MAP) {
+                writeJson(out);
+                return;
+            }
+
+            readByte();
+            readLength();
+            out.append('{');
+            boolean first = true;
+            for (long n = readVarLong(); n > 0; n--) {
+                String key = readString();
+                if (!fields.contains(key)) {
+                    skipValue();
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.appendString(key);
+                out.append(':');
+                writeJson(out);
+            }
+            out.append('}');
+        }
+
+        /* Move past the next value without decoding it */
+        void skipValue() {
+            byte tag = readByte();
+            switch (tag) {
+                case TAG_INT:
+                    readVarLong();
+                    break;
+                case TAG_FLOAT:
+                    check(8);
+                    pos += 8;
+                    break;
+                case TAG_TRUE:
+                case TAG_FALSE:
+                    break;
+                case TAG_STRING:
+                    int len = (int)readVarLong();
+                    check(len);
+                    pos += len;
+                    break;
+                case TAG_MAP:
+                case TAG_LIST:
+                    int size = readLength();
+                    check(size);
+                    pos += size;
+                    break;
+                default:
+                    throw new MessageFormatException(
+                                              "Unknown box type tag " + tag);
+            }
+        }
+
+        byte peekTag() {
+            check(1);
+            return data[pos];
+        }
+
+        /* Copy the next string to out as a JSON string without decoding
+         * the UTF-8 bytes */
+        void writeJsonString(RawJsonBox out) {
+            int len = (int)readVarLong();
+            check(len);
+            out.appendString(data, pos, len);
+            pos += len;
+        }
+
+        String readString() {
+            int len = (int)readVarLong();
+            check(len);
+            String s = new String(data, pos, len, UTF8);
+            pos += len;
+            return s;
+        }
+
+        byte readByte() {
+            check(1);
+            return data[pos++];
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new MessageFormatException("Malformed varint in box data");
+        }
+
+        int readLength() {
+            check(4);
+            int len = getInt(data, pos);
+            pos += 4;
+            return len;
+        }
+
+        void check(int needed) {
+            if (needed < 0 || pos + needed > end) {
+                throw new MessageFormatException("Truncated box data");
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package higgla.server;
+
+import juglr.Box;
+import juglr.JSonBoxParser;
+import juglr.MessageFormatException;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Integer.parseInt;
+
+/**
+ * Offline builder for creating a new base from a dump of boxes without
+ * going through a running Higgla server. The dump files contain one JSON
+ * box per line. A dump file name of {@code -} reads from standard input.
+ * <pre>
+ *   java higgla.server.Builder [--threads N] [--optimize] base dump...
+ * </pre>
+ * The boxes are written to the index by a number of worker threads in
+ * parallel, each with its own IndexWriter on a temporary directory next to
+ * the base. When all dumps have been read the temporary indexes are merged
+ * into the base and the higgla.meta file is written, so the base can be
+ * served by a normal Higgla server right away. The temporary directories are
+ * removed when the build is done, also if it fails.
+ * <p/>
+ * Since the base is new there are no conflict checks. Each box is assigned a
+ * fresh revision number and any {@code _rev} field in the dump is ignored,
+ * as are boxes marked {@code _deleted}. The ids in the dumps must be unique.
+ * The builder refuses to write to a directory already containing an index.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 5, 2010
+ */
+public class Builder {
+
+    /** Number of lines handed to a worker at a time */
+    private static final int BATCH_SIZE = 1000;
+
+    /** RAM buffer for each worker's IndexWriter in MB. Set with the system
+     * property {@code higgla.builder.rambuffer} */
+    static final int RAM_BUFFER_MB = Math.max(1, Integer.getInteger(
+                                            "higgla.builder.rambuffer", 64));
+
+    private static final List<String> END = Collections.emptyList();
+
+    private File baseDir;
+    private int numThreads;
+    private boolean optimize;
+    private Analyzer analyzer;
+    private AtomicLong revisionCounter;
+    private BlockingQueue<List<String>> queue;
+    private List<Worker> workers;
+
+    public Builder(File baseDir, int numThreads, boolean optimize) {
+        this.baseDir = baseDir;
+        this.numThreads = numThreads;
+        this.optimize = optimize;
+        analyzer = new StandardAnalyzer(
+                               Version.LUCENE_CURRENT, Collections.EMPTY_SET);
+        revisionCounter = new AtomicLong();
+        queue = new ArrayBlockingQueue<List<String>>(2*numThreads);
+        workers = new ArrayList<Worker>(numThreads);
+    }
+
+    public static void main(String[] args) {
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        boolean optimize = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    numThreads = Math.max(1, parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println(String.format(
+                            "Thread count not a number '%s': %s. Bailing out.",
+                            args[i], e.getMessage()));
+                    System.exit(1);
+                }
+            } else if ("--optimize".equals(args[i])) {
+                optimize = true;
+            } else {
+                System.err.println(String.format(
+                        "Unknown option '%s'. Bailing out.", args[i]));
+                System.exit(1);
+            }
+        }
+
+        if (args.length - i < 2) {
+            System.err.println("Usage: java higgla.server.Builder " +
+                               "[--threads N] [--optimize] base dump...");
+            System.exit(1);
+        }
+
+        File baseDir = new File(args[i++]);
+        List<String> dumps = new ArrayList<String>();
+        for (; i < args.length; i++) {
+            dumps.add(args[i]);
+        }
+
+        try {
+            new Builder(baseDir, numThreads, optimize).build(dumps);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("I/O error building base. Bailing out.");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Read all boxes in {@code dumps} and build the base from them
+     * @param dumps the dump files to read, {@code -} for standard input
+     * @throws IOException if there is an error reading the dumps or writing
+     *                     the index
+     */
+    public void build(List<String> dumps) throws IOException {
+        if (baseDir.exists() &&
+            IndexReader.indexExists(FSDirectory.open(baseDir))) {
+            throw new IOException("Refusing to overwrite existing base "
+                                  + baseDir);
+        }
+        baseDir.mkdirs();
+
+        long startTime = System.currentTimeMillis();
+        long numSkipped = 0;
+        try {
+            for (int i = 0; i < numThreads; i++) {
+                File tmpDir = new File(baseDir.getPath() + ".build-" + i);
+                Worker worker = new Worker(tmpDir);
+                workers.add(worker);
+                worker.start();
+            }
+
+            try {
+                for (String dump : dumps) {
+                    readDump(dump);
+                }
+            } finally {
+                for (int i = 0; i < numThreads; i++) {
+                    enqueue(END);
+                }
+            }
+
+            Directory[] parts = new Directory[workers.size()];
+            for (int i = 0; i < parts.length; i++) {
+                Worker worker = workers.get(i);
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted waiting for workers");
+                }
+                if (worker.error != null) {
+                    throw new IOException(
+                            "Worker failed: " + worker.error.getMessage());
+                }
+                parts[i] = worker.dir;
+                numSkipped += worker.numSkipped;
+            }
+
+            IndexWriter writer = new IndexWriter(
+                             FSDirectory.open(baseDir), analyzer, true,
+                             IndexWriter.MaxFieldLength.LIMITED);
+            try {
+                writer.addIndexesNoOptimize(parts);
+                if (optimize) {
+                    writer.optimize();
+                }
+                // Record the last revision like the WriterActor does, so
+                // the changes feed can tell which revisions are committed
+                writer.commit(Collections.singletonMap(
+                                  WriterActor.LAST_REVISION,
+                                  Long.toString(revisionCounter.get())));
+            } finally {
+                writer.close();
+            }
+
+            // Only write the meta file once the index is safely committed
+            new BaseMeta(baseDir).write(revisionCounter.get());
+        } finally {
+            // Remove the temporary indexes, also when the build failed
+            for (Worker worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    // The worker may still be writing to its directory
+                    continue;
+                }
+                worker.dir.close();
+                delete(worker.tmpDir);
+            }
+        }
+
+        System.err.println(String.format(
+                "Wrote %s boxes to '%s' in %ss. Skipped %s boxes",
+                revisionCounter.get(), baseDir,
+                (System.currentTimeMillis() - startTime) / 1000, numSkipped));
+    }
+
+    private void readDump(String dump) throws IOException {
+        InputStream in = "-".equals(dump) ?
+                         System.in : new FileInputStream(dump);
+        BufferedReader reader =
+                         new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+
+                batch.add(line);
+                if (batch.size() == BATCH_SIZE) {
+                    enqueue(batch);
+                    batch = new ArrayList<String>(BATCH_SIZE);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                enqueue(batch);
+            }
+        } finally {
+            if (in != System.in) {
+                reader.close();
+            }
+        }
+    }
+
+    private void enqueue(List<String> batch) throws IOException {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted reading dump");
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /* Parses batches of lines and adds them to a private index */
+    private class Worker extends Thread {
+        private File tmpDir;
+        private Directory dir;
+        private JSonBoxParser boxParser;
+        private DocumentBuilder documentBuilder;
+        private long numSkipped;
+        private Throwable error;
+
+        public Worker(File tmpDir) throws IOException {
+            this.tmpDir = tmpDir;
+            dir = FSDirectory.open(tmpDir);
+            boxParser = new JSonBoxParser();
+            documentBuilder = new DocumentBuilder();
+        }
+
+        @Override
+        public void run() {
+            IndexWriter writer = null;
+            try {
+                writer = new IndexWriter(dir, analyzer, true,
+                                         IndexWriter.MaxFieldLength.LIMITED);
+                writer.setRAMBufferSizeMB(RAM_BUFFER_MB);
+
+                List<String> batch;
+                while ((batch = queue.take()) != END) {
+                    for (String line : batch) {
+                        add(writer, line);
+                    }
+                }
+            } catch (Throwable t) {
+                error = t;
+                t.printStackTrace();
+                // Keep draining the queue so the reader does not block
+                try {
+                    while (queue.take() != END);
+                } catch (InterruptedException e) {
+                    // We are failing anyway
+                }
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void add(IndexWriter writer, String line) throws IOException {
+            Box box;
+            try {
+                box = boxParser.parse(line);
+                if (box.getType() != Box.Type.MAP || !box.has("_id")) {
+                    System.err.println("Skipping box without _id: " + line);
+                    numSkipped++;
+                    return;
+                } else if (box.has("_deleted")) {
+                    numSkipped++;
+                    return;
+                }
+                box.put("_rev", revisionCounter.incrementAndGet());
+                writer.addDocument(documentBuilder.build(box));
+            } catch (MessageFormatException e) {
+                System.err.println(String.format(
+                        "Skipping malformed box: %s", e.getMessage()));
+                numSkipped++;
+            } catch (Box.TypeException e) {
+                System.err.println(String.format(
+                        "Skipping malformed box: %s", e.getMessage()));
+                numSkipped++;
+            }
+        }
+    }
+}
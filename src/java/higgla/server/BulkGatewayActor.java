@@ -0,0 +1,161 @@
+package higgla.server;
+
+import juglr.*;
+import juglr.net.HTTP;
+import juglr.net.HTTPRequest;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Gateway for importing large numbers of boxes into a base. The request
+ * body has the same format as for a normal POST to the base, a MAP of boxes
+ * keyed by their ids. Instead of writing all boxes in one transaction the
+ * boxes are submitted to the {@link WriterActor} in chunks of at most
+ * {@link #CHUNK_SIZE} boxes. The next chunk is not prepared before the
+ * writer has replied to the previous one, so the number of documents and
+ * revisions held by the writer stays bounded by the chunk size no matter
+ * how big the import is.
+ * <p/>
+ * Each chunk is committed as an independent transaction. A conflict in one
+ * chunk only drops that chunk. The response contains the writer's reply for
+ * each chunk under {@code chunks} and the number of successful and failed
+ * chunks under {@code ok} and {@code errors}. If a box is malformed the
+ * import stops and the boxes following it are not written.
+ * <p/>
+ * The chunk size can be set with the system property
+ * {@code higgla.bulk.chunksize}.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 4, 2010
+ */
+public class BulkGatewayActor extends WriterGatewayActor {
+
+    static final int CHUNK_SIZE = Math.max(1, Integer.getInteger(
+                                             "higgla.bulk.chunksize", 1000));
+
+    @Override
+    public void react(Message message) {
+        if (!(message instanceof HTTPRequest)) {
+            replyTo(message, HTTP.Status.InternalError, "error",
+                    "Expected HTTPRequest got '%s'",
+                    message.getClass().getName());
+            return;
+        }
+
+        HTTPRequest req = (HTTPRequest)message;
+        Box body = req.getBody();
+        if (body.getType() != Box.Type.MAP) {
+            replyTo(message, HTTP.Status.BadRequest, "error",
+                    "Expected a MAP of boxes, got %s", body.getType());
+            return;
+        }
+
+        String baseName = extractBaseFromUri(req.getUri()).toString();
+        Actor bulkImport = new BulkImport(baseName,
+                                          findWriterActorForBase(baseName),
+                                          body.getMap().entrySet().iterator(),
+                                          message.getReplyTo());
+        getBus().start(bulkImport.getAddress());
+    }
+
+    /* Feeds the boxes of one request to the writer a chunk at a time and
+     * collects the replies. Lives until the last chunk has been written */
+    private class BulkImport extends Actor {
+        private String baseName;
+        private Address writer;
+        private Iterator<Map.Entry<String,Box>> boxes;
+        private Address client;
+        private Box chunks;
+        private int numOk;
+        private int numErrors;
+
+        public BulkImport(String baseName, Address writer,
+                          Iterator<Map.Entry<String,Box>> boxes,
+                          Address client) {
+            this.baseName = baseName;
+            this.writer = writer;
+            this.boxes = boxes;
+            this.client = client;
+            chunks = Box.newList();
+        }
+
+        @Override
+        public void start() {
+            sendNextChunk();
+        }
+
+        @Override
+        public void react(Message message) {
+            if (!(message instanceof Box)) {
+                System.err.println(String.format(
+                        "Bulk import for '%s' expected a Box. Got %s",
+                        baseName, message.getClass().getName()));
+                return;
+            }
+
+            Box reply = (Box)message;
+            if (reply.has("error")) {
+                numErrors++;
+            } else {
+                numOk++;
+            }
+            chunks.add(reply);
+            sendNextChunk();
+        }
+
+        private void sendNextChunk() {
+            if (!boxes.hasNext()) {
+                finish(null);
+                return;
+            }
+
+            Transaction transaction = new Transaction(baseName);
+            transaction.setReplyTo(getAddress());
+            try {
+                while (boxes.hasNext() && transaction.size() < CHUNK_SIZE) {
+                    Map.Entry<String,Box> entry = boxes.next();
+                    Box box = entry.getValue();
+                    String id = entry.getKey();
+
+                    String error = checkBox(id, box);
+                    if (error != null) {
+                        finish(error);
+                        return;
+                    }
+
+                    if (box.has("_deleted")) {
+                        transaction.delete(box);
+                    } else {
+                        transaction.add(box);
+                    }
+                }
+            } catch (TransactionException e) {
+                finish(e.getMessage());
+                return;
+            } catch (Box.TypeException e) {
+                finish(e.getMessage());
+                return;
+            } catch (MessageFormatException e) {
+                finish(e.getMessage());
+                return;
+            }
+
+            send(transaction, writer);
+        }
+
+        /* Reply to the client and retract from the bus. If error is
+         * not null the import was aborted */
+        private void finish(String error) {
+            Box reply = Box.newMap();
+            reply.put("chunks", chunks);
+            reply.put("ok", numOk);
+            reply.put("errors", numErrors);
+            if (error != null) {
+                reply.put("error", error);
+            }
+            send(reply, client);
+            getBus().freeAddress(getAddress());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package higgla.server;
+
+import juglr.*;
+import juglr.net.HTTP;
+import juglr.net.HTTPResponse;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopFieldDocs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Lists the boxes changed in a base since a given revision, in revision
+ * order. Revisions are handed out from one counter per base, so everything
+ * written after revision N is found with a numeric range query on the
+ * {@code _rev} field. Deletes are read from the {@link Tombstones} of the
+ * base. The request is a MAP with the optional fields:
+ * <ul>
+ *   <li>{@code _since} - only list changes with a revision greater than
+ *       this. Defaults to 0, listing all boxes</li>
+ *   <li>{@code _count} - the maximum number of changes to list. Defaults
+ *       to {@link #DEFAULT_COUNT}. At most {@link #MAX_COUNT}</li>
+ *   <li>{@code _bodies} - if {@code true} list the full boxes instead of
+ *       just their {@code _id} and {@code _rev}</li>
+ *   <li>{@code _wait} - if there are no changes, wait up to this many
+ *       milliseconds for a commit before replying. At most
+ *       {@link #MAX_WAIT}</li>
+ * </ul>
+ * The reply is a MAP with the fields:
+ * <ul>
+ *   <li>{@code _data} - LIST of changes. A deleted box is listed as
+ *       <code>{"_id" : ..., "_rev" : ..., "_deleted" : true}</code></li>
+ *   <li>{@code _last} - the revision of the last change considered. Pass
+ *       it as {@code _since} to get the next changes</li>
+ *   <li>{@code _more} - {@code true} if there are more changes after
+ *       {@code _last}</li>
+ * </ul>
+ * Each box is only listed with its latest revision. A box written twice
+ * since {@code _since} is listed once.
+ * <p/>
+ * Waiting requests are parked in the actor. The {@link SearcherManager}
+ * of the base sends {@link #COMMITTED} when it has published a new reader,
+ * and the parked requests are retried. There is one ChangesActor per base,
+ * on the address {@link #baseAddress(CharSequence)}. The
+ * {@link ChangesGatewayActor} creates it and allocates the address.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 15, 2010
+ */
+public class ChangesActor extends BaseActor {
+
+    /** Default number of changes in a reply */
+    public static final int DEFAULT_COUNT = 100;
+
+    /**
+     * Maximum number of changes in a reply. Set it with the system property
+     * {@code higgla.changes.maxcount}
+     */
+    public static final int MAX_COUNT = Math.max(1, Integer.getInteger(
+                                         "higgla.changes.maxcount", 10000));
+
+    /**
+     * Maximum time in milliseconds a request may wait for changes. Set it
+     * with the system property {@code higgla.changes.maxwait}
+     */
+    public static final long MAX_WAIT = Math.max(0, Long.getLong(
+                                         "higgla.changes.maxwait", 60000));
+
+    /** Sent by the {@link SearcherManager} after publishing a new reader */
+    public static final Message COMMITTED = new Message();
+
+    private static final Timer waitTimer = new Timer("higgla-changes", true);
+
+    private static final Sort revisionSort = new Sort(new SortField(
+                        "_rev", FieldCache.NUMERIC_UTILS_LONG_PARSER, false));
+
+    private static final FieldSelector idSelector =
+                                   new MapFieldSelector(new String[]{"_id"});
+
+    private static final FieldSelector bodySelector =
+                                 new MapFieldSelector(new String[]{"_body"});
+
+    private static final FieldSelector revisionSelector =
+                                  new MapFieldSelector(new String[]{"_rev"});
+
+    private BoxCodec bodyCodec;
+    private SearcherManager searchers;
+    private Tombstones tombstones;
+    private List<Waiting> waiting;
+
+    public ChangesActor(String baseName) {
+        super(baseName);
+        bodyCodec = new BoxCodec();
+        searchers = SearcherManager.forBase(baseName);
+        tombstones = Tombstones.forBase(baseName);
+        waiting = new ArrayList<Waiting>();
+    }
+
+    public static String baseAddress(CharSequence baseName) {
+        return "/_changes_" + baseName;
+    }
+
+    @Override
+    public void react(Message message) {
+        if (message == COMMITTED) {
+            retryWaiting();
+            return;
+        } else if (message instanceof Expired) {
+            Waiting w = ((Expired)message).waiting;
+            if (waiting.remove(w)) {
+                reply(w, null);
+            }
+            return;
+        } else if (!(message instanceof Box)) {
+            replyTo(message, HTTP.Status.InternalError, "error",
+                    "Expected Box. Found '%s'", message.getClass().getName());
+            return;
+        }
+
+        Box box = (Box)message;
+        Waiting w = new Waiting();
+        w.replyTo = message.getReplyTo();
+        long count, wait;
+        try {
+            box.checkType(Box.Type.MAP);
+            w.since = box.getLong("_since", 0);
+            count = box.getLong("_count", DEFAULT_COUNT);
+            w.bodies = box.getBoolean("_bodies", false);
+            wait = Math.min(box.getLong("_wait", 0), MAX_WAIT);
+        } catch (Box.TypeException e) {
+            replyTo(message, HTTP.Status.BadRequest,
+                    "error", "Invalid message type: %s", e.getMessage());
+            return;
+        }
+
+        if (count <= 0) {
+            replyTo(message, HTTP.Status.BadRequest,
+                    "error", "_count must be positive, got %s", count);
+            return;
+        }
+        w.count = (int)Math.min(count, MAX_COUNT);
+
+        Box changes;
+        try {
+            changes = findChanges(w);
+        } catch (Throwable t) {
+            fail(w, t);
+            return;
+        }
+
+        if (changes == null && wait > 0) {
+            park(w, wait);
+        } else {
+            reply(w, changes);
+        }
+    }
+
+    private void park(final Waiting w, long wait) {
+        waiting.add(w);
+
+        final Address self = getAddress();
+        waitTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                getBus().send(new Expired(w), self);
+            }
+        }, wait);
+    }
+
+    /* Reply to the parked requests that now have changes */
+    private void retryWaiting() {
+        Iterator<Waiting> iter = waiting.iterator();
+        while (iter.hasNext()) {
+            Waiting w = iter.next();
+            try {
+                Box changes = findChanges(w);
+                if (changes != null) {
+                    iter.remove();
+                    reply(w, changes);
+                }
+            } catch (Throwable t) {
+                iter.remove();
+                fail(w, t);
+            }
+        }
+    }
+
+    /* Send the changes to the client, or an empty reply if changes is
+     * null */
+    private void reply(Waiting w, Box changes) {
+        if (changes == null) {
+            changes = Box.newMap();
+            changes.put("_data", Box.newList());
+            changes.put("_last", w.since);
+            changes.put("_more", false);
+        }
+        send(changes, w.replyTo);
+    }
+
+    private void fail(Waiting w, Throwable t) {
+        Box error;
+        if (t instanceof IOException) {
+            error = formatMessage("error",
+                                  "Error listing changes: %s", t.getMessage());
+        } else {
+            t.printStackTrace();
+            String hint = t.getMessage();
+            hint = hint != null ? hint : t.getClass().getSimpleName();
+            error = formatMessage("error", "Internal error: %s", hint);
+        }
+        send(new HTTPResponse(HTTP.Status.InternalError, error), w.replyTo);
+    }
+
+    /* Return the changes after w.since or null if there are none */
+    private Box findChanges(Waiting w) throws IOException {
+        IndexSearcher searcher = searchers.acquire();
+        try {
+            return findChanges(w, searcher);
+        } finally {
+            searchers.release(searcher);
+        }
+    }
+
+    /* Merge the first w.count boxes and tombstones after w.since in
+     * revision order. The two lists hold at least the first w.count
+     * changes between them, so the merge is exact */
+    private Box findChanges(Waiting w, IndexSearcher searcher)
+                                                           throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        Query q = NumericRangeQuery.newLongRange(
+                                          "_rev", w.since, null, false, true);
+        TopFieldDocs docs = searcher.search(q, null, w.count, revisionSort);
+        long committed = committedRevision(reader);
+        SortedMap<Long,String> deletes = visible(
+                            tombstones.since(w.since, w.count), committed);
+        if (docs.scoreDocs.length == 0 && deletes.isEmpty()) {
+            return null;
+        }
+
+        Box data = Box.newList();
+        long last = w.since;
+        int hit = 0;
+        Iterator<Map.Entry<Long,String>> deleteIter =
+                                                 deletes.entrySet().iterator();
+        Map.Entry<Long,String> delete =
+                                  deleteIter.hasNext() ? deleteIter.next() : null;
+        for (int n = 0; n < w.count; n++) {
+            long hitRev = Long.MAX_VALUE;
+            if (hit < docs.scoreDocs.length) {
+                hitRev = (Long)((FieldDoc)docs.scoreDocs[hit]).fields[0];
+            }
+
+            if (delete != null && delete.getKey() < hitRev) {
+                last = delete.getKey();
+                if (isDeleted(reader, delete.getValue(), last)) {
+                    data.add(Box.newMap()
+                                .put("_id", delete.getValue())
+                                .put("_rev", last)
+                                .put("_deleted", true));
+                }
+                delete = deleteIter.hasNext() ? deleteIter.next() : null;
+            } else if (hitRev != Long.MAX_VALUE) {
+                last = hitRev;
+                int doc = docs.scoreDocs[hit].doc;
+                if (w.bodies) {
+                    data.add(bodyCodec.decode(reader.document(
+                                  doc, bodySelector).getFieldable("_body")));
+                } else {
+                    data.add(Box.newMap()
+                                .put("_id", reader.document(
+                                                    doc, idSelector).get("_id"))
+                                .put("_rev", last));
+                }
+                hit++;
+            } else {
+                break;
+            }
+        }
+
+        Box reply = Box.newMap();
+        reply.put("_data", data);
+        reply.put("_last", last);
+        reply.put("_more", hit < docs.totalHits ||
+                   !visible(tombstones.since(last, 1), committed).isEmpty());
+        return reply;
+    }
+
+    /* The last revision handed out when the commit of the reader was made.
+     * Bases without such a record have never had any deletes */
+    static long committedRevision(IndexReader reader) {
+        String rev = reader.getCommitUserData().get(WriterActor.LAST_REVISION);
+        return rev == null ? Long.MAX_VALUE : Long.parseLong(rev);
+    }
+
+    /* Drop the tombstones of deletes committed after the reader was opened.
+     * They are written before the commit, and the reader would still see
+     * the deleted boxes */
+    static SortedMap<Long,String> visible(
+                                 SortedMap<Long,String> deletes, long committed) {
+        return committed == Long.MAX_VALUE ?
+                                   deletes : deletes.headMap(committed + 1);
+    }
+
+    /* A tombstone is left behind if a commit fails after it was written.
+     * Only trust it if the box is gone or has been written again since */
+    static boolean isDeleted(IndexReader reader, String id, long rev)
+                                                           throws IOException {
+        TermDocs termDocs = reader.termDocs(new Term("_id", id));
+        try {
+            if (!termDocs.next()) {
+                return true;
+            }
+            return GetActor.readRevision(
+                   reader.document(termDocs.doc(), revisionSelector)) > rev;
+        } finally {
+            termDocs.close();
+        }
+    }
+
+    /* A request, possibly parked until there are changes */
+    private static class Waiting {
+        public Address replyTo;
+        public long since;
+        public int count;
+        public boolean bodies;
+    }
+
+    /* Sent by the wait timer when a parked request times out */
+    private static class Expired extends Message {
+        public final Waiting waiting;
+
+        public Expired(Waiting waiting) {
+            this.waiting = waiting;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package higgla.server;
+
+import juglr.Address;
+import juglr.AddressAlreadyOwnedException;
+import juglr.Box;
+import juglr.Message;
+import juglr.net.HTTP;
+import juglr.net.HTTPRequest;
+
+/**
+ * Responsible for forwarding HTTPRequests to the {@link ChangesActor} of
+ * the right base, creating it if needed. A new ChangesActor is registered
+ * under its name before any request is sent to it
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 15, 2010
+ */
+public class ChangesGatewayActor extends HTTPGatewayActor {
+
+    @Override
+    public void react(Message message) {
+        if (!(message instanceof HTTPRequest)) {
+            replyTo(message, HTTP.Status.InternalError, "error",
+                    "Expected HTTPRequest got '%s'",
+                    message.getClass().getName());
+            return;
+        }
+
+        HTTPRequest req = (HTTPRequest)message;
+        Box body = req.getBody();
+
+        // Make sure that responses from the ChangesActor we forward to are
+        // sent to the replyTo of 'message' and not this actor
+        body.setReplyTo(message.getReplyTo());
+
+        send(body, findChangesActorForUri(req.getUri()));
+    }
+
+    private Address findChangesActorForUri(CharSequence uri) {
+        CharSequence base = extractBaseFromUri(uri);
+        Address changesAddress = getBus().lookup(
+                                             ChangesActor.baseAddress(base));
+
+        if (changesAddress == null) {
+            // Allocate the name before sending, a request sent to an actor
+            // that later loses the race for the name would never be answered
+            ChangesActor changes = new ChangesActor(base.toString());
+            try {
+                getBus().allocateNamedAddress(
+                                      changes, ChangesActor.baseAddress(base));
+                changesAddress = changes.getAddress();
+                getBus().start(changesAddress);
+            } catch (AddressAlreadyOwnedException e) {
+                // Another gateway created the ChangesActor first
+                getBus().freeAddress(changes.getAddress());
+                changesAddress = getBus().lookup(
+                                             ChangesActor.baseAddress(base));
+            }
+        }
+
+        return changesAddress;
+    }
+}
@@ -2,49 +2,71 @@ package higgla.server;
 
 import juglr.*;
 import juglr.net.HTTP;
-import juglr.net.HTTPRequest;
 import juglr.net.HTTPResponse;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.TermQuery;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
- * FIXME: Missing class docs for higgla.server.CountActor
+ * Counts the hits of one or more named queries. Each key in the request
+ * MAP not starting with {@code _} names a query. The value is either a LIST
+ * of query templates, in which case the reply for the query is the hit
+ * count, or a MAP with the fields:
+ * <ul>
+ *   <li>{@code _templates} - LIST of query templates</li>
+ *   <li>{@code _facets} - LIST of fields to count the most frequent values
+ *       of among the hits. Each element is a field name or a MAP with the
+ *       fields {@code field}, {@code count} - the number of values to
+ *       return, default {@link #DEFAULT_FACET_COUNT}, and {@code type} -
+ *       one of {@code "string"}, {@code "int"} and {@code "float"}. The
+ *       type defaults to {@code "float"} for numeric fields holding FLOAT
+ *       values in any box, {@code "int"} for other numeric fields and
+ *       {@code "string"} otherwise</li>
+ * </ul>
+ * The reply for a MAP query is a MAP with the hit count in {@code _total}
+ * and a {@code _facets} MAP from field name to a LIST of
+ * <code>{"value" : ..., "count" : ...}</code> MAPs, most frequent first.
+ * All facets are counted in a single pass over the hits, see
+ * {@link FacetCollector}.
+ * <p/>
+ * Plain counts never score the hits. Queries matching all boxes, a single
+ * term or all boxes but a few negated ones are answered from the index
+ * statistics where possible, see {@link CountingCollector}.
+ * <p/>
+ * Results are kept in the {@link ResultCache} of the base until the next
+ * commit. If the request contains {@code _stats : true} the reply has an
+ * extra field {@code _stats} with the cache statistics.
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Feb 19, 2010
  */
 public class CountActor extends BaseActor {
 
-    private BoxParser boxParser;
+    public static final int DEFAULT_FACET_COUNT = 10;
+
+    private SearcherManager searchers;
+    private ResultCache cache;
     private QueryParser queryParser;
 
     public CountActor(String baseName) {
         super(baseName);
-        boxParser = new JSonBoxParser();
+        searchers = SearcherManager.forBase(baseName);
+        cache = ResultCache.forBase(baseName);
         queryParser = new QueryParser();
     }
 
-    @Override
-    public void start() {
-        try {
-            getBus().allocateNamedAddress(this,
-                                          CountActor.baseAddress(baseName));
-        } catch (AddressAlreadyOwnedException e) {
-            // Another CountActor is already running for this base.
-            // Retract from the bus silently
-            getBus().freeAddress(getAddress());
-        }
-    }
-
     @Override
     public void react(Message message) {
         if (!(message instanceof Box)) {
@@ -69,7 +91,7 @@ public class CountActor extends BaseActor {
 
         IndexSearcher searcher;
         try {
-            searcher = takeSearcher(baseName);
+            searcher = searchers.acquire();
         } catch (IOException e) {
             e.printStackTrace();
             replyTo(message, HTTP.Status.InternalError, "error",
@@ -78,17 +100,23 @@ public class CountActor extends BaseActor {
         }
 
         // Any key in the query MAP not starting with _ is to be
-        // executed as a single query
-        Box reply = Box.newMap();
+        // executed as a single query. All queries run in parallel against
+        // the same searcher
+        Box reply = null;
         HTTP.Status status = HTTP.Status.OK;
         try {
+            Map<String,Callable<Box>> jobs =
+                                    new LinkedHashMap<String,Callable<Box>>();
             for (Map.Entry<String,Box> queryBox : box.getMap().entrySet()) {
-                // FIXME: Parallelize queries
                 if (queryBox.getKey().startsWith("_")) {
                     continue;
                 }
-                int hitCount = countHits(queryBox.getValue(), searcher);
-                reply.put(queryBox.getKey(), hitCount);
+                jobs.put(queryBox.getKey(),
+                         new CountJob(queryBox.getValue(), searcher));
+            }
+            reply = invokeAll(jobs);
+            if (box.getBoolean("_stats", false)) {
+                reply.put("_stats", cache.getStats());
             }
         } catch (MessageFormatException e) {
             reply = formatMessage("error",
@@ -110,7 +138,7 @@ public class CountActor extends BaseActor {
             status = HTTP.Status.InternalError;
         } finally {
             try {
-                releaseSearcher(searcher);
+                searchers.release(searcher);
             } catch (IOException e) {
                 reply = formatMessage("error",
                                       "Error releasing searcher: %s",
@@ -129,21 +157,164 @@ public class CountActor extends BaseActor {
         }
 
         Query query = queryParser.parseTemplates(templates.getList());
+        return count(simplify(query), searcher);
+    }
+
+    /* Count the hits of a query, using the index statistics instead of
+     * running the query when they give the exact answer */
+    private int count(Query query, IndexSearcher searcher) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+
+        if (query instanceof MatchAllDocsQuery) {
+            return reader.numDocs();
+        }
+
+        // docFreq includes deleted documents
+        if (query instanceof TermQuery && !reader.hasDeletions()) {
+            return reader.docFreq(((TermQuery)query).getTerm());
+        }
 
-        // Execute query and get the hit count
-        TopDocs docs = searcher.search(query, 1);
-        return docs.totalHits;
+        // A template with only negations: all boxes minus the negated ones
+        Query negated = getNegatedMatchAll(query);
+        if (negated != null) {
+            return reader.numDocs() - count(simplify(negated), searcher);
+        }
+
+        CountingCollector collector = new CountingCollector();
+        searcher.search(query, collector);
+        return collector.getCount();
     }
 
-    private IndexSearcher takeSearcher(String base) throws IOException {
-        // FIXME: Optimize this by caching the reader/searcher
-        File indexDir = new File(base);
-        IndexReader reader = IndexReader.open(FSDirectory.open(indexDir));
-        return new IndexSearcher(reader);
+    /* Unwrap boolean queries with a single required or optional clause.
+     * Only valid when counting since boosts are lost */
+    private static Query simplify(Query query) {
+        while (query instanceof BooleanQuery) {
+            BooleanClause[] clauses = ((BooleanQuery)query).getClauses();
+            if (clauses.length != 1 || clauses[0].isProhibited()) {
+                break;
+            }
+            query = clauses[0].getQuery();
+        }
+        return query;
     }
 
-    private void releaseSearcher(IndexSearcher searcher) throws IOException {
-        if (searcher != null) searcher.close();
+    /* If query is a MatchAllDocsQuery with prohibited clauses, return the
+     * disjunction of the prohibited queries. Otherwise return null */
+    private static Query getNegatedMatchAll(Query query) {
+        if (!(query instanceof BooleanQuery)) {
+            return null;
+        }
+
+        BooleanQuery negated = new BooleanQuery();
+        boolean matchAll = false;
+        for (BooleanClause clause : ((BooleanQuery)query).getClauses()) {
+            if (clause.isProhibited()) {
+                negated.add(clause.getQuery(), BooleanClause.Occur.SHOULD);
+            } else if (!matchAll &&
+                       clause.getQuery() instanceof MatchAllDocsQuery) {
+                matchAll = true;
+            } else {
+                return null;
+            }
+        }
+
+        return matchAll && negated.clauses().size() > 0 ? negated : null;
+    }
+
+
+    private Box countFacets(Box queryBox, IndexSearcher searcher)
+                 throws MessageFormatException, Box.TypeException, IOException {
+        Box templates = queryBox.get("_templates");
+        if (templates == null || templates.getList().size() == 0) {
+            throw new MessageFormatException("Empty query");
+        }
+
+        Query query = queryParser.parseTemplates(templates.getList());
+        List<FacetCollector.Facet> facets = Collections.emptyList();
+        if (queryBox.has("_facets")) {
+            facets = parseFacets(
+                      queryBox.getList("_facets"), searcher.getIndexReader());
+        }
+        FacetCollector collector = new FacetCollector(facets);
+        searcher.search(query, collector);
+
+        Box result = Box.newMap();
+        result.put("_total", collector.getTotalHits());
+        result.put("_facets", collector.getFacets());
+        return result;
+    }
+
+    private List<FacetCollector.Facet> parseFacets(
+                    List<Box> facetSpecs, IndexReader reader)
+                                                           throws IOException {
+        List<FacetCollector.Facet> facets =
+                  new ArrayList<FacetCollector.Facet>(facetSpecs.size());
+        for (Box spec : facetSpecs) {
+            String field;
+            String type = null;
+            int count = DEFAULT_FACET_COUNT;
+
+            if (spec.getType() == Box.Type.STRING) {
+                field = spec.getString();
+            } else if (spec.getType() == Box.Type.MAP) {
+                field = spec.getString("field");
+                type = spec.getString("type", null);
+                count = (int)spec.getLong("count", DEFAULT_FACET_COUNT);
+            } else {
+                throw new MessageFormatException(
+                       "Facets must be STRING or MAP, got " + spec.getType());
+            }
+
+            if (type == null) {
+                if (!QueryParser.isNumeric(field, reader)) {
+                    type = "string";
+                } else if (QueryParser.hasFloats(field, reader)) {
+                    type = "float";
+                } else {
+                    type = "int";
+                }
+            }
+
+            FacetCollector.Type facetType;
+            if ("string".equals(type)) {
+                facetType = FacetCollector.Type.STRING;
+            } else if ("int".equals(type)) {
+                facetType = FacetCollector.Type.INT;
+            } else if ("float".equals(type)) {
+                facetType = FacetCollector.Type.FLOAT;
+            } else {
+                throw new MessageFormatException(
+                                        "Invalid facet type '" + type + "'");
+            }
+
+            facets.add(new FacetCollector.Facet(field, facetType, count));
+        }
+        return facets;
+    }
+
+    private class CountJob implements Callable<Box> {
+        private Box templates;
+        private IndexSearcher searcher;
+
+        public CountJob(Box templates, IndexSearcher searcher) {
+            this.templates = templates;
+            this.searcher = searcher;
+        }
+
+        public Box call() throws IOException {
+            long version = searcher.getIndexReader().getVersion();
+            String key = ResultCache.key("count", templates, false);
+            Box result = cache.get(version, key);
+            if (result == null) {
+                if (templates.getType() == Box.Type.MAP) {
+                    result = countFacets(templates, searcher);
+                } else {
+                    result = new Box(countHits(templates, searcher));
+                }
+                cache.put(version, key, result);
+            }
+            return result;
+        }
     }
 
     public static String baseAddress(CharSequence baseName) {
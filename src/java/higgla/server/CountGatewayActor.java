@@ -7,7 +7,7 @@ import juglr.net.HTTP;
 import juglr.net.HTTPRequest;
 
 /**
- * Responsible for forwarding HTTPRequests to the right CountActor
+ * Responsible for forwarding HTTPRequests to the right pool of CountActors
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Feb 19, 2010
@@ -39,7 +39,12 @@ public class CountGatewayActor extends HTTPGatewayActor {
         Address countAddress = getBus().lookup(CountActor.baseAddress(base));
 
         if (countAddress == null) {
-            countAddress = new CountActor(base.toString()).getAddress();
+            CountActor[] members = new CountActor[ActorPool.DEFAULT_SIZE];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = new CountActor(base.toString());
+            }
+            countAddress = ActorPool.newForActors(
+                       CountActor.baseAddress(base), members).getAddress();
             getBus().start(countAddress);
         }
 
@@ -0,0 +1,42 @@
+package higgla.server;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Counts the hits of a query without scoring them or keeping any of them
+ * around. Hits may be delivered in any order, so Lucene is free to pick
+ * the cheapest scorer for the query.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 10, 2010
+ */
+public class CountingCollector extends Collector {
+
+    private int count;
+
+    @Override
+    public void setScorer(Scorer scorer) {
+        // Scores are not needed
+    }
+
+    @Override
+    public void collect(int doc) {
+        count++;
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) {
+        // Document numbers are not needed
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
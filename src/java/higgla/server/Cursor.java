@@ -0,0 +1,127 @@
+package higgla.server;
+
+import juglr.MessageFormatException;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.math.BigInteger;
+
+/**
+ * Position in a result set, handed to clients as the opaque {@code _next}
+ * token of a query response. Passing the token back in the {@code _next}
+ * field of the same query continues the result set after the last returned
+ * box, without the server having to collect the hits before it again.
+ * <p/>
+ * The position is the sort values and document number of the last returned
+ * hit. For queries without a {@code _sort} the only sort value is the score.
+ * Exports walk the result set in document order and only use the document
+ * number. Document numbers may change when the base is modified, so if boxes
+ * are written while a client pages through a result set some boxes may be
+ * skipped or returned twice.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 9, 2010
+ */
+public class Cursor {
+
+    /** The sort values of the last hit. Each value is a {@code Float},
+     * {@code Long}, {@code String} or {@code null} */
+    public final Object[] values;
+    public final int doc;
+
+    public Cursor(Object[] values, int doc) {
+        this.values = values;
+        this.doc = doc;
+    }
+
+    /**
+     * Create a cursor pointing at {@code last}. If {@code last} is a
+     * {@link SearchAfterCollector.FieldHit} its sort values are used,
+     * otherwise the score is the only sort value
+     * @param last the last hit on a page
+     */
+    public Cursor(ScoreDoc last) {
+        this(last instanceof SearchAfterCollector.FieldHit ?
+             ((SearchAfterCollector.FieldHit)last).values :
+             new Object[]{last.score},
+             last.doc);
+    }
+
+    /**
+     * Parse a token created by {@link #toString()}
+     * @param token the token to parse
+     * @return the cursor encoded in {@code token}
+     * @throws MessageFormatException if {@code token} is not a valid cursor
+     */
+    public static Cursor parse(String token) {
+        String[] parts = token.split("\\.", -1);
+        Object[] values = new Object[parts.length - 1];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                String part = parts[i];
+                if (part.length() == 0) {
+                    throw new MessageFormatException(
+                                         "Invalid cursor '" + token + "'");
+                }
+
+                String hex = part.substring(1);
+                switch (part.charAt(0)) {
+                    case 'f':
+                        values[i] = Float.intBitsToFloat(
+                                         (int)Long.parseLong(hex, 16));
+                        break;
+                    case 'l':
+                        values[i] = new BigInteger(hex, 16).longValue();
+                        break;
+                    case 's':
+                        values[i] = new String(fromHex(hex), BoxCodec.UTF8);
+                        break;
+                    case 'n':
+                        values[i] = null;
+                        break;
+                    default:
+                        throw new MessageFormatException(
+                                         "Invalid cursor '" + token + "'");
+                }
+            }
+            return new Cursor(values, Integer.parseInt(
+                                               parts[parts.length - 1], 16));
+        } catch (NumberFormatException e) {
+            throw new MessageFormatException("Invalid cursor '" + token + "'");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (Object value : values) {
+            if (value instanceof Float) {
+                buf.append('f').append(Integer.toHexString(
+                                    Float.floatToIntBits((Float)value)));
+            } else if (value instanceof Long) {
+                buf.append('l').append(Long.toHexString((Long)value));
+            } else if (value instanceof String) {
+                buf.append('s');
+                for (byte b : ((String)value).getBytes(BoxCodec.UTF8)) {
+                    buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    buf.append(Character.forDigit(b & 0xF, 16));
+                }
+            } else {
+                buf.append('n');
+            }
+            buf.append('.');
+        }
+        return buf.append(Integer.toHexString(doc)).toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new NumberFormatException("Odd length hex string");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(
+                                         hex.substring(2*i, 2*i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,102 @@
+package higgla.server;
+
+import juglr.Box;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Converts boxes to the Lucene documents they are stored as. Shared by the
+ * {@link WriterActor} and the offline {@link Builder} so that both lay out
+ * documents the same way.
+ * <p/>
+ * A DocumentBuilder is not thread safe. Each thread must use its own.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 5, 2010
+ */
+public class DocumentBuilder {
+
+    /**
+     * Field holding the names of the fields a document indexes FLOAT
+     * values for. Used to tell them apart from INT fields, they are
+     * indexed with the same kind of terms
+     */
+    public static final String FLOAT_FIELDS = "_floats";
+
+    private BoxCodec bodyCodec;
+
+    public DocumentBuilder() {
+        bodyCodec = new BoxCodec();
+    }
+
+    /**
+     * Create the Lucene document storing {@code box}. The box must have
+     * the fields {@code _id} and {@code _rev} set
+     * @param box the box to store
+     * @return a document with the stored fields {@code _id}, {@code _rev}
+     *         and {@code _body} and the fields listed in {@code _index}.
+     *         The body is stored in the binary format of {@link BoxCodec}.
+     *         The names of the FLOAT fields are indexed in
+     *         {@link #FLOAT_FIELDS}
+     */
+    public Document build(Box box) {
+        Document doc = new Document();
+        String id = box.getString("_id");
+        long rev = box.getLong("_rev");
+        byte[] body = bodyCodec.encode(box);
+
+        // Add stored fields
+        doc.add(new Field(
+                "_id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new NumericField(
+                "_rev", Field.Store.YES, true).setLongValue(rev));
+        doc.add(new Field("_body", body, Field.Store.YES));
+
+        // Indexed fields
+        List<Box> indexFields;
+        if (box.has("_index")) {
+            indexFields = box.getList("_index");
+        } else {
+            indexFields = Collections.EMPTY_LIST;
+        }
+        for (Box fieldBox : indexFields) {
+            String field = fieldBox.getString();
+            Box value = box.get(field);
+
+            /* Fields marked for indexing are not necessarily */
+            if (value == null) {
+                continue;
+            }
+
+            switch (value.getType()) {
+                case INT:
+                    doc.add(new NumericField(field).setLongValue(
+                            value.getLong()));
+                    break;
+                case FLOAT:
+                    doc.add(
+                            new NumericField(field).setDoubleValue(
+                                    value.getFloat()));
+                    doc.add(new Field(FLOAT_FIELDS, field, Field.Store.NO,
+                                      Field.Index.NOT_ANALYZED_NO_NORMS));
+                    break;
+                case BOOLEAN:
+                    doc.add(new Field(field, value.toString(), Field.Store.NO,
+                                      Field.Index.NOT_ANALYZED));
+                    break;
+                case STRING:
+                    doc.add(new Field(field, value.getString(),
+                                      Field.Store.NO, Field.Index.ANALYZED));
+                    break;
+                case MAP:
+                case LIST:
+                    throw new UnsupportedOperationException("FIXME");
+            }
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,94 @@
+package higgla.server;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ReaderUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Walks the hits of a query in document order without scoring or sorting
+ * them. Used for exporting whole result sets a page at a time. A page
+ * starts after a given document number. Each segment scorer skips directly
+ * to that document, and the scan stops once the page is full. Memory use
+ * and the cost of a page only depend on the page size, not on how far into
+ * the result set the page is.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 10, 2010
+ */
+public class ExportScanner {
+
+    private IndexSearcher searcher;
+    private Query query;
+    private boolean hasMore;
+
+    public ExportScanner(IndexSearcher searcher, Query query) {
+        this.searcher = searcher;
+        this.query = query;
+    }
+
+    /**
+     * Collect matching documents following {@code after}
+     * @param after collect documents with a number greater than this,
+     *              -1 to start from the beginning
+     * @param numHits the maximum number of documents to collect
+     * @return the matching documents in document order. The scores of the
+     *         returned hits are not computed and are always 0
+     * @throws IOException on errors reading the index
+     */
+    public ScoreDoc[] scan(int after, int numHits) throws IOException {
+        List<IndexReader> segments = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders(segments, searcher.getIndexReader());
+
+        Weight weight = query.weight(searcher);
+        List<ScoreDoc> hits = new ArrayList<ScoreDoc>(numHits);
+        hasMore = false;
+
+        int docBase = 0;
+        for (IndexReader segment : segments) {
+            int maxDoc = segment.maxDoc();
+            if (docBase + maxDoc <= after + 1) {
+                // The whole segment is before the cursor
+                docBase += maxDoc;
+                continue;
+            }
+
+            Scorer scorer = weight.scorer(segment, true, false);
+            if (scorer == null) {
+                docBase += maxDoc;
+                continue;
+            }
+
+            int doc = scorer.advance(Math.max(0, after + 1 - docBase));
+            for (; doc != DocIdSetIterator.NO_MORE_DOCS;
+                   doc = scorer.nextDoc()) {
+                if (hits.size() == numHits) {
+                    // We only needed to know if there are more hits
+                    hasMore = true;
+                    return hits.toArray(new ScoreDoc[hits.size()]);
+                }
+                hits.add(new ScoreDoc(docBase + doc, 0));
+            }
+            docBase += maxDoc;
+        }
+
+        return hits.toArray(new ScoreDoc[hits.size()]);
+    }
+
+    /**
+     * Check whether the last call to {@link #scan} stopped because the page
+     * was full and there are more matching documents
+     * @return {@code true} if there are more hits after the last page
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
@@ -0,0 +1,276 @@
+package higgla.server;
+
+import juglr.Box;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.NumericUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counts the hits of a query together with the number of hits per value
+ * of one or more indexed fields, all in a single pass over the matching
+ * documents.
+ * <p/>
+ * Each segment maps its documents to term ordinals through a
+ * {@link FieldCache.StringIndex}. Collecting a hit is a single array
+ * increment per facet, and the per segment counts are merged by term when
+ * the collector moves on to the next segment. For STRING fields the string
+ * index comes from the {@link FieldCache}. Numeric fields are indexed with
+ * several trie terms per value, so their ordinals are built from the full
+ * precision terms only and cached per segment in this class.
+ * <p/>
+ * Like sorting, faceting is only meaningful on fields with a single term
+ * per box, like keywords, booleans and numbers.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 10, 2010
+ */
+public class FacetCollector extends Collector {
+
+    /**
+     * The type of values of a facet field
+     */
+    public static enum Type { STRING, INT, FLOAT }
+
+    /**
+     * A request for the most frequent values of a field
+     */
+    public static class Facet {
+        public final String field;
+        public final Type type;
+        public final int count;
+
+        public Facet(String field, Type type, int count) {
+            this.field = field;
+            this.type = type;
+            this.count = count;
+        }
+    }
+
+    /* Numeric ordinals per segment, keyed by field cache key and field.
+     * The outer map is guarded by itself, the ordinals of a field are built
+     * by the first thread asking for them. Nothing in the values may refer
+     * to the reader, it holds the weak key */
+    private static final Map<Object,ConcurrentMap<String,NumericOrdinals>>
+        numericOrdinals =
+            new WeakHashMap<Object,ConcurrentMap<String,NumericOrdinals>>();
+
+    private Facet[] facets;
+    private List<Map<String,int[]>> totals;
+    private FieldCache.StringIndex[] ordinals;
+    private int[][] counts;
+    private int totalHits;
+
+    public FacetCollector(List<Facet> facets) {
+        this.facets = facets.toArray(new Facet[facets.size()]);
+        totals = new ArrayList<Map<String,int[]>>(this.facets.length);
+        for (int i = 0; i < this.facets.length; i++) {
+            totals.add(new HashMap<String,int[]>());
+        }
+        ordinals = new FieldCache.StringIndex[this.facets.length];
+        counts = new int[this.facets.length][];
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) {
+        // Scores are not needed
+    }
+
+    @Override
+    public void collect(int doc) {
+        totalHits++;
+        for (int i = 0; i < facets.length; i++) {
+            counts[i][ordinals[i].order[doc]]++;
+        }
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase)
+                                                           throws IOException {
+        mergeCounts();
+        for (int i = 0; i < facets.length; i++) {
+            if (facets[i].type == Type.STRING) {
+                ordinals[i] = FieldCache.DEFAULT.getStringIndex(
+                                                       reader, facets[i].field);
+            } else {
+                ordinals[i] = getNumericOrdinals(reader, facets[i].field);
+            }
+            counts[i] = new int[ordinals[i].lookup.length];
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * Get the most frequent values of each facet field. The result is a MAP
+     * from field name to a LIST of MAPs with the fields {@code value} and
+     * {@code count}, sorted by descending count and ascending value
+     * @return a MAP box with the facet counts
+     */
+    public Box getFacets() {
+        mergeCounts();
+        Box result = Box.newMap();
+        for (int i = 0; i < facets.length; i++) {
+            List<Map.Entry<String,int[]>> entries =
+                  new ArrayList<Map.Entry<String,int[]>>(
+                                                  totals.get(i).entrySet());
+            Collections.sort(entries, ENTRY_ORDER);
+
+            Box values = Box.newList();
+            int n = Math.min(facets[i].count, entries.size());
+            for (int j = 0; j < n; j++) {
+                Map.Entry<String,int[]> entry = entries.get(j);
+                Box value = Box.newMap();
+                value.put("value", decode(entry.getKey(), facets[i].type));
+                value.put("count", entry.getValue()[0]);
+                values.add(value);
+            }
+            result.put(facets[i].field, values);
+        }
+        return result;
+    }
+
+    /* Add the counts of the current segment to the totals. Ordinal 0 is
+     * the documents without a value */
+    private void mergeCounts() {
+        for (int i = 0; i < facets.length; i++) {
+            if (counts[i] == null) {
+                continue;
+            }
+            Map<String,int[]> total = totals.get(i);
+            String[] lookup = ordinals[i].lookup;
+            for (int ord = 1; ord < counts[i].length; ord++) {
+                if (counts[i][ord] == 0) {
+                    continue;
+                }
+                int[] count = total.get(lookup[ord]);
+                if (count == null) {
+                    total.put(lookup[ord], new int[]{counts[i][ord]});
+                } else {
+                    count[0] += counts[i][ord];
+                }
+            }
+            counts[i] = null;
+        }
+    }
+
+    private static Box decode(String term, Type type) {
+        switch (type) {
+            case INT:
+                return new Box(NumericUtils.prefixCodedToLong(term));
+            case FLOAT:
+                return new Box(NumericUtils.sortableLongToDouble(
+                                        NumericUtils.prefixCodedToLong(term)));
+            default:
+                return new Box(term);
+        }
+    }
+
+    private static final Comparator<Map.Entry<String,int[]>> ENTRY_ORDER =
+                                  new Comparator<Map.Entry<String,int[]>>() {
+        public int compare(Map.Entry<String,int[]> e1,
+                           Map.Entry<String,int[]> e2) {
+            int c1 = e1.getValue()[0];
+            int c2 = e2.getValue()[0];
+            if (c1 != c2) {
+                return c1 > c2 ? -1 : 1;
+            }
+            // Prefix coded numbers sort like the numbers they encode
+            return e1.getKey().compareTo(e2.getKey());
+        }
+    };
+
+    /* Build a string index of the full precision terms of a numeric field
+     * in a single segment. Only the lookup of the segment takes the global
+     * lock, threads building different fields or segments do not wait for
+     * each other */
+    private static FieldCache.StringIndex getNumericOrdinals(
+                        IndexReader reader, String field) throws IOException {
+        Object key = reader.getFieldCacheKey();
+        ConcurrentMap<String,NumericOrdinals> fields;
+        synchronized (numericOrdinals) {
+            fields = numericOrdinals.get(key);
+            if (fields == null) {
+                fields = new ConcurrentHashMap<String,NumericOrdinals>();
+                numericOrdinals.put(key, fields);
+            }
+        }
+
+        NumericOrdinals ordinals = fields.get(field);
+        if (ordinals == null) {
+            ordinals = new NumericOrdinals();
+            NumericOrdinals race = fields.putIfAbsent(field, ordinals);
+            if (race != null) {
+                ordinals = race;
+            }
+        }
+
+        synchronized (ordinals) {
+            if (ordinals.index == null) {
+                ordinals.index = buildNumericOrdinals(reader, field);
+            }
+            return ordinals.index;
+        }
+    }
+
+    /* The ordinals of one field in one segment, built on first use. If the
+     * build fails the next request tries again */
+    private static class NumericOrdinals {
+        FieldCache.StringIndex index; // guarded by 'this'
+    }
+
+    private static FieldCache.StringIndex buildNumericOrdinals(
+                        IndexReader reader, String field) throws IOException {
+        int[] order = new int[reader.maxDoc()];
+        List<String> lookup = new ArrayList<String>();
+        lookup.add(null);
+
+        String prefix = String.valueOf(NumericUtils.SHIFT_START_LONG);
+        TermEnum terms = reader.terms(new Term(field, prefix));
+        TermDocs termDocs = reader.termDocs();
+        try {
+            do {
+                Term term = terms.term();
+                if (term == null || !term.field().equals(field) ||
+                    !term.text().startsWith(prefix)) {
+                    break;
+                }
+
+                int ord = lookup.size();
+                lookup.add(term.text());
+                termDocs.seek(terms);
+                while (termDocs.next()) {
+                    order[termDocs.doc()] = ord;
+                }
+            } while (terms.next());
+        } finally {
+            termDocs.close();
+            terms.close();
+        }
+
+        return new FieldCache.StringIndex(
+                            order, lookup.toArray(new String[lookup.size()]));
+    }
+}
@@ -3,14 +3,20 @@ package higgla.server;
 import juglr.*;
 import juglr.net.HTTP;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.IndexSearcher;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Fetches a collection of boxes given their ids. The incoming request
@@ -38,29 +44,42 @@ import java.util.List;
  * </pre>
  * <i>Failed look ups:</i> In case a box can not be found for a given id an
  * empty box, <code>{}</code>, is returned in its place.
+ * <p/>
+ * Instead of a plain LIST of ids the request may be a MAP with the ids in
+ * the field {@code _ids}. The MAP form also accepts the options
+ * {@code _fields}, a LIST of the top level fields to return for each box,
+ * and {@code _raw}, which copies the stored boxes directly into the
+ * response as JSON text, as described for the {@link QueryActor}.
+ * <p/>
+ * <i>Revalidation:</i> The MAP form also accepts {@code _revs}, a MAP of
+ * ids to the revisions the client already has. A box that is still at the
+ * given revision is not loaded. In its place the reply contains a stub
+ * like <code>{"_id" : "mydoc1", "_rev" : 7, "_unchanged" : true}</code>.
+ * <p/>
+ * A single box can also be fetched by sending a {@link Single} message,
+ * as done by the {@link GetGatewayActor} for {@code GET /$base/$id}. The
+ * stored body is then returned as is, without any envelope.
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Feb 1, 2010
  */
 public class GetActor extends BaseActor {
 
-    private BoxParser boxParser;
+    /** Only load the body when fetching boxes */
+    private static final FieldSelector bodySelector =
+                                 new MapFieldSelector(new String[]{"_body"});
+
+    /** Only load the revision when checking if a box has changed */
+    private static final FieldSelector revisionSelector =
+                                  new MapFieldSelector(new String[]{"_rev"});
+
+    private BoxCodec bodyCodec;
+    private SearcherManager searchers;
 
     public GetActor(String baseName) {
         super(baseName);
-        boxParser = new JSonBoxParser();
-    }
-
-    @Override
-    public void start() {
-        try {
-            getBus().allocateNamedAddress(this,
-                                          GetActor.baseAddress(baseName));
-        } catch (AddressAlreadyOwnedException e) {
-            // Another GetActor is already running for this base.
-            // Retract from the bus silently
-            getBus().freeAddress(getAddress());
-        }
+        bodyCodec = new BoxCodec();
+        searchers = SearcherManager.forBase(baseName);
     }
 
     public static String baseAddress(String baseName) {
@@ -69,58 +88,107 @@ public class GetActor extends BaseActor {
 
     @Override
     public void react(Message message) {
-         if (!(message instanceof Box)) {
+        if (message instanceof Single) {
+            handleSingle((Single)message);
+            return;
+        } else if (!(message instanceof Box)) {
             replyTo(message, HTTP.Status.InternalError, "error",
                     "Expected Box. Found '%s'", message.getClass().getName());
             return;
         }
 
         Box box = (Box)message;
-        if (box.getType() != Box.Type.LIST) {
-            replyTo(message, HTTP.Status.BadRequest, "error",
-                    "Expected LIST. Got '%s'", box.getType());
+        List<Box> ids;
+        Set<String> fields = null;
+        Box knownRevs = null;
+        boolean raw = false;
+        try {
+            if (box.getType() == Box.Type.LIST) {
+                ids = box.getList();
+            } else if (box.getType() == Box.Type.MAP) {
+                if (!box.has("_ids")) {
+                    replyTo(message, HTTP.Status.BadRequest, "error",
+                            "No _ids field in request");
+                    return;
+                }
+                ids = box.getList("_ids");
+                fields = parseFields(box);
+                raw = box.getBoolean("_raw", false);
+                knownRevs = box.get("_revs");
+                if (knownRevs != null) {
+                    knownRevs.checkType(Box.Type.MAP);
+                }
+            } else {
+                replyTo(message, HTTP.Status.BadRequest, "error",
+                        "Expected LIST or MAP. Got '%s'", box.getType());
+                return;
+            }
+        } catch (Box.TypeException e) {
+            replyTo(message, HTTP.Status.BadRequest,
+                    "error", "Invalid message type: %s", e.getMessage());
             return;
         }
 
-        List<Box> ids = box.getList();
         if (ids.size() == 0) {
             replyTo(message, HTTP.Status.BadRequest, "error",
                     "No ids specified in request");
             return;
         }
 
-        // Parse the query
-        Query[] queries;
+        // Parse the ids and the revisions the client already has
+        String[] idStrings;
+        long[] revs = null;
         try {
-            queries = parseQueries(ids);
-        } catch (MessageFormatException e) {
-            replyTo(message, HTTP.Status.BadRequest,
-                    "error", "Invalid message format: %s", e.getMessage());
-            return;
+            idStrings = parseIds(ids);
+            if (knownRevs != null) {
+                revs = new long[idStrings.length];
+                for (int i = 0; i < revs.length; i++) {
+                    Box rev = knownRevs.get(idStrings[i]);
+                    revs[i] = rev == null ? 0 : rev.getLong();
+                }
+            }
         } catch (Box.TypeException e) {
             replyTo(message, HTTP.Status.BadRequest,
                     "error", "Invalid message type: %s", e.getMessage());
             return;
         }
 
-        // Execute query, collect _body fields, parse them as Boxes,
-        // and return to sender
+        // Look up the ids, load the _body fields in docid order, and
+        // return them to sender in request order
         IndexSearcher searcher = null;
         Box results = Box.newList();
+        RawJsonBox rawResults = new RawJsonBox();
+        rawResults.append('[');
         try {
-            searcher = takeSearcher();
-            for (int i = 0; i < ids.size(); i++) {
-                TopDocs docs = searcher.search(queries[i], 1);
-                if (docs.scoreDocs.length == 0) {
-                    results.add("{}");
+            searcher = searchers.acquire();
+            Fieldable[] bodies = lookup(
+                                  searcher.getIndexReader(), idStrings, revs);
+            for (int i = 0; i < bodies.length; i++) {
+                if (raw && i > 0) {
+                    rawResults.append(',');
+                }
+
+                if (bodies[i] == null && revs != null && revs[i] > 0) {
+                    Box unchanged = unchanged(idStrings[i], revs[i]);
+                    if (raw) {
+                        rawResults.appendBox(unchanged);
+                    } else {
+                        results.add(unchanged);
+                    }
+                } else if (bodies[i] == null) {
+                    if (raw) {
+                        rawResults.appendRaw("{}");
+                    } else {
+                        results.add(Box.newMap());
+                    }
+                } else if (raw) {
+                    bodyCodec.writeJson(bodies[i], rawResults, fields);
                 } else {
-                    Document doc = searcher.doc(docs.scoreDocs[0].doc);
-                    Box resultBox = boxParser.parse(
-                                        doc.getField("_body").stringValue());
-                    results.add(resultBox);
+                    results.add(bodyCodec.decode(bodies[i], fields));
                 }
             }
-            send(results, message.getReplyTo());
+            send(raw ? rawResults.append(']') : results,
+                 message.getReplyTo());
         } catch (IOException e) {
             replyTo(message, HTTP.Status.InternalError,
                     "error", "Error executing query: %s", e.getMessage());
@@ -132,7 +200,7 @@ public class GetActor extends BaseActor {
                     "error", "Internal error: %s", hint);
         } finally {
             try {
-                releaseSearcher(searcher);
+                searchers.release(searcher);
             } catch (IOException e) {
                 replyTo(message, HTTP.Status.InternalError,
                   "error", "Error releasing searcher: %s", e.getMessage());
@@ -140,24 +208,210 @@ public class GetActor extends BaseActor {
         }
     }
 
-    private IndexSearcher takeSearcher() throws IOException {
-        // FIXME: Optimize this by caching the reader/searcher
-        File indexDir = new File(baseName);
-        IndexReader reader = IndexReader.open(FSDirectory.open(indexDir));
-        return new IndexSearcher(reader);
+    /* Copy the stored body of a single box directly into the response,
+     * or reply with a stub if the client already has the current revision.
+     * Replies with NotFound if there is no box with the id */
+    private void handleSingle(Single single) {
+        IndexSearcher searcher = null;
+        try {
+            searcher = searchers.acquire();
+            IndexReader reader = searcher.getIndexReader();
+            TermDocs termDocs = reader.termDocs(new Term("_id", single.id));
+            int doc;
+            try {
+                doc = termDocs.next() ? termDocs.doc() : -1;
+            } finally {
+                termDocs.close();
+            }
+
+            if (doc == -1) {
+                replyTo(single, HTTP.Status.NotFound,
+                        "error", "No box with id '%s'", single.id);
+                return;
+            }
+
+            if (single.rev > 0 && single.rev ==
+                         readRevision(reader.document(doc, revisionSelector))) {
+                send(unchanged(single.id, single.rev), single.getReplyTo());
+                return;
+            }
+
+            Fieldable body = reader.document(doc, bodySelector)
+                                                       .getFieldable("_body");
+            RawJsonBox result = new RawJsonBox();
+            bodyCodec.writeJson(body, result);
+            send(result, single.getReplyTo());
+        } catch (IOException e) {
+            replyTo(single, HTTP.Status.InternalError,
+                    "error", "Error executing query: %s", e.getMessage());
+        } catch (Throwable t) {
+            t.printStackTrace();
+            String hint = t.getMessage();
+            hint = hint != null ? hint : t.getClass().getSimpleName();
+            replyTo(single, HTTP.Status.InternalError,
+                    "error", "Internal error: %s", hint);
+        } finally {
+            try {
+                searchers.release(searcher);
+            } catch (IOException e) {
+                replyTo(single, HTTP.Status.InternalError,
+                  "error", "Error releasing searcher: %s", e.getMessage());
+            }
+        }
     }
 
-    private void releaseSearcher(IndexSearcher searcher) throws IOException {
-        if (searcher != null) searcher.close();
+    /**
+     * Look up the stored bodies of a collection of boxes. The ids are
+     * sorted and seeked in one forward pass over the {@code _id} terms,
+     * then the bodies are loaded in docid order.
+     * <p/>
+     * If {@code revs} is not {@code null} it holds the revisions the client
+     * already has, with 0 for unknown boxes. The bodies of boxes still at
+     * those revisions are not loaded. On return the entries of all other
+     * ids are set to 0, so a positive entry marks an unchanged box.
+     * @param reader the reader to look the ids up in
+     * @param ids the ids to look up, may contain duplicates
+     * @param revs known revisions of the boxes or {@code null}
+     * @return the {@code _body} fields in the order of {@code ids}, with
+     *         {@code null} for ids without a box and for unchanged boxes
+     * @throws IOException on errors reading the index
+     */
+    static Fieldable[] lookup(IndexReader reader, String[] ids, long[] revs)
+                                                           throws IOException {
+        Integer[] byId = new Integer[ids.length];
+        for (int i = 0; i < byId.length; i++) {
+            byId[i] = i;
+        }
+        Arrays.sort(byId, new IdComparator(ids));
+
+        // TermDocs skips deleted documents. Seeking in term order lets the
+        // term enumerator of each segment scan forward instead of going
+        // back to the term index for every id
+        final int[] docs = new int[ids.length];
+        int hits = 0;
+        TermDocs termDocs = reader.termDocs();
+        try {
+            String lastId = null;
+            int lastDoc = -1;
+            for (int i : byId) {
+                if (!ids[i].equals(lastId)) {
+                    lastId = ids[i];
+                    termDocs.seek(new Term("_id", lastId));
+                    lastDoc = termDocs.next() ? termDocs.doc() : -1;
+                }
+                docs[i] = lastDoc;
+                if (lastDoc != -1) {
+                    hits++;
+                } else if (revs != null) {
+                    revs[i] = 0;
+                }
+            }
+        } finally {
+            termDocs.close();
+        }
+
+        Fieldable[] bodies = new Fieldable[ids.length];
+        if (hits == 0) {
+            return bodies;
+        }
+
+        Integer[] byDoc = new Integer[hits];
+        hits = 0;
+        for (int i = 0; i < docs.length; i++) {
+            if (docs[i] != -1) {
+                byDoc[hits++] = i;
+            }
+        }
+        Arrays.sort(byDoc, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return docs[a] < docs[b] ? -1 : (docs[a] == docs[b] ? 0 : 1);
+            }
+        });
+
+        int lastDoc = -1;
+        long lastRev = 0;
+        Fieldable lastBody = null;
+        for (int i : byDoc) {
+            if (docs[i] != lastDoc) {
+                lastDoc = docs[i];
+                lastRev = 0;
+                lastBody = null;
+            }
+
+            if (revs != null && revs[i] > 0) {
+                if (lastRev == 0) {
+                    lastRev = readRevision(
+                                  reader.document(lastDoc, revisionSelector));
+                }
+                if (revs[i] == lastRev) {
+                    continue;
+                }
+                revs[i] = 0;
+            }
+
+            if (lastBody == null) {
+                lastBody = reader.document(lastDoc, bodySelector)
+                                                    .getFieldable("_body");
+            }
+            bodies[i] = lastBody;
+        }
+
+        return bodies;
     }
 
-    private Query[] parseQueries(List<Box> ids) {
-        Query[] q = new Query[ids.size()];
+    /* Stored NumericFields are read back as plain string fields */
+    static long readRevision(Document doc) {
+        Fieldable f = doc.getFieldable("_rev");
+        if (f instanceof NumericField) {
+            return ((NumericField)f).getNumericValue().longValue();
+        }
+        return Long.parseLong(f.stringValue());
+    }
+
+    /* The reply for a box the client already has the current revision of */
+    private static Box unchanged(String id, long rev) {
+        return Box.newMap()
+                  .put("_id", id)
+                  .put("_rev", rev)
+                  .put("_unchanged", true);
+    }
+
+    private String[] parseIds(List<Box> ids) {
+        String[] result = new String[ids.size()];
 
         for (int i = 0; i < ids.size(); i++) {
-            q[i] = new TermQuery(new Term("_id", ids.get(i).getString()));
+            result[i] = ids.get(i).getString();
+        }
+
+        return result;
+    }
+
+    /* Orders indexes into an array of ids by the ids they point to */
+    private static class IdComparator implements Comparator<Integer> {
+        private String[] ids;
+
+        public IdComparator(String[] ids) {
+            this.ids = ids;
+        }
+
+        public int compare(Integer a, Integer b) {
+            return ids[a].compareTo(ids[b]);
+        }
+    }
+
+    /**
+     * Request for a single box by id. The reply is the stored body of the
+     * box as JSON text, or a NotFound {@link juglr.net.HTTPResponse}. If
+     * {@code rev} is the current revision of the box the reply is only a
+     * stub with the fields {@code _id}, {@code _rev} and {@code _unchanged}
+     */
+    public static class Single extends Message {
+        public String id;
+        public long rev;
+
+        public Single(String id, long rev) {
+            this.id = id;
+            this.rev = rev;
         }
-        
-        return q;
     }
 }
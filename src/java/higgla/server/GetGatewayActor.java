@@ -0,0 +1,60 @@
+package higgla.server;
+
+import juglr.Box;
+import juglr.Message;
+import juglr.net.HTTP;
+import juglr.net.HTTPRequest;
+
+/**
+ * Handles {@code GET /$base/$id} by sending a {@link GetActor.Single}
+ * lookup to the {@link GetActor} pool of the base. The reply is the stored
+ * box as is, including its {@code _rev} field. If there is no box with the
+ * given id the reply is NotFound. Ids starting with {@code _} are
+ * reserved for the fixed sub paths of a base, see
+ * {@link WriterGatewayActor#checkBox}.
+ * <p/>
+ * If the request body is a MAP with a {@code _rev} field, and the box is
+ * still at that revision, the reply is only a stub with the fields
+ * {@code _id}, {@code _rev} and {@code _unchanged}. This takes the place of
+ * an {@code If-None-Match} header, which the HTTP server does not expose.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 10, 2010
+ */
+public class GetGatewayActor extends HTTPGatewayActor {
+
+    @Override
+    public void react(Message message) {
+        if (!(message instanceof HTTPRequest)) {
+            replyTo(message, HTTP.Status.InternalError, "error",
+                    "Expected HTTPRequest got '%s'",
+                    message.getClass().getName());
+            return;
+        }
+
+        HTTPRequest req = (HTTPRequest)message;
+        String id = extractIdFromUri(req.getUri());
+        if (id == null || id.length() == 0) {
+            replyTo(message, HTTP.Status.BadRequest,
+                    "error", "Invalid box id in '%s'", req.getUri());
+            return;
+        }
+
+        long rev = 0;
+        Box body = req.getBody();
+        if (body.getType() == Box.Type.MAP && body.has("_rev")) {
+            try {
+                rev = body.getLong("_rev");
+            } catch (Box.TypeException e) {
+                replyTo(message, HTTP.Status.BadRequest,
+                        "error", "Invalid _rev: %s", e.getMessage());
+                return;
+            }
+        }
+
+        GetActor.Single single = new GetActor.Single(id, rev);
+        single.setReplyTo(message.getReplyTo());
+        send(single, findGetActorForBase(
+                                  extractBaseFromUri(req.getUri()).toString()));
+    }
+}
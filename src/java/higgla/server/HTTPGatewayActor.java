@@ -1,11 +1,15 @@
 package higgla.server;
 
 import juglr.Actor;
+import juglr.Address;
 import juglr.Box;
 import juglr.Message;
 import juglr.net.HTTP;
 import juglr.net.HTTPResponse;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
 /**
  * Base class for actors used to forward {@link HTTPRequest}s  to
  * to actors handling only the body part of the HTTP request.
@@ -43,4 +47,51 @@ public abstract class HTTPGatewayActor extends Actor {
         return uri.subSequence(1, baseEnd);
     }
 
+    /**
+     * Extract the box id from a URI of the form {@code /$basename/$id}.
+     * The id is URL decoded
+     * @param uri the request URI
+     * @return the decoded id or {@code null} if the URI has no id segment
+     */
+    protected String extractIdFromUri(CharSequence uri) {
+        int idStart = extractBaseFromUri(uri).length() + 2;
+        if (idStart >= uri.length()) {
+            return null;
+        }
+
+        try {
+            return URLDecoder.decode(
+                             uri.subSequence(idStart, uri.length()).toString(),
+                             "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        } catch (IllegalArgumentException e) {
+            // Malformed escape sequence
+            return null;
+        }
+    }
+
+    /**
+     * Look up the {@link GetActor} pool of a base, creating and starting it
+     * if it is not registered on the bus
+     * @param base the name of the base
+     * @return the address of the pool
+     */
+    protected Address findGetActorForBase(String base) {
+        Address getAddress = getBus().lookup(GetActor.baseAddress(base));
+
+        if (getAddress == null) {
+            GetActor[] members = new GetActor[ActorPool.DEFAULT_SIZE];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = new GetActor(base);
+            }
+            getAddress = ActorPool.newForActors(
+                             GetActor.baseAddress(base), members).getAddress();
+            getBus().start(getAddress);
+        }
+
+        return getAddress;
+    }
+
 }
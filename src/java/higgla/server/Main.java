@@ -33,12 +33,19 @@ public class Main {
         Actor writer = new WriterGatewayActor();
         Actor query = new QueryGatewayActor();
         Actor count = new CountGatewayActor();
-        //Actor get = new GetActor();
+        Actor bulk = new BulkGatewayActor();
+        Actor get = new GetGatewayActor();
+        Actor put = new PutGatewayActor();
+        Actor changes = new ChangesGatewayActor();
 
         // Start actors
         MessageBus.getDefault().start(writer.getAddress());
         MessageBus.getDefault().start(query.getAddress());
         MessageBus.getDefault().start(count.getAddress());
+        MessageBus.getDefault().start(bulk.getAddress());
+        MessageBus.getDefault().start(get.getAddress());
+        MessageBus.getDefault().start(put.getAddress());
+        MessageBus.getDefault().start(changes.getAddress());
 
         // Set up the HTTP server
         HTTPServer server = null;
@@ -57,14 +64,20 @@ public class Main {
                     //".*", query.getAddress(), HTTP.Method.GET);
         //server.registerHandler(
         //            "^/[^/]+/search\\?.+$", search.getAddress(), HTTP.Method.GET);
-        //server.registerHandler(
-        //            "^/[^/]+/changes\\?.+$", changes.getAddress(), HTTP.Method.GET);
         server.registerHandler(
-                    "^/[^/]+/count/?$", count.getAddress(), HTTP.Method.GET);
-        //server.registerHandler(
-        //            "^/[^/]+/[^/]+$", get.getAddress(), HTTP.Method.GET);
-        //server.registerHandler(
-        //            "^/[^/]+/[^/]+$", put.getAddress(), HTTP.Method.PUT);
+                    "^/[^/]+/_count/?$", count.getAddress(), HTTP.Method.GET);
+        server.registerHandler(
+                    "^/[^/]+/_bulk/?$", bulk.getAddress(), HTTP.Method.POST);
+        server.registerHandler(
+                    "^/[^/]+/_changes/?$", changes.getAddress(), HTTP.Method.GET);
+
+        // Single box routes must come after the fixed sub paths of a base,
+        // as the first matching handler wins. The fixed sub paths start
+        // with _ and ids starting with _ are reserved for them
+        server.registerHandler(
+                    "^/[^/]+/[^/]+$", get.getAddress(), HTTP.Method.GET);
+        server.registerHandler(
+                    "^/[^/]+/[^/]+$", put.getAddress(), HTTP.Method.PUT);
 
         server.start();
 
@@ -1,17 +1,79 @@
 package higgla.server;
 
-import juglr.Actor;
-import juglr.Message;
+import juglr.*;
+import juglr.net.HTTP;
+import juglr.net.HTTPRequest;
 
 /**
- *
+ * Handles {@code PUT /$base/$id} by writing the request body as a single
+ * box in a transaction of its own. The body must be a MAP with a
+ * {@code _rev} field as for a normal POST to the base. The {@code _id}
+ * field may be left out, in which case it is taken from the URI. If the
+ * box has a {@code _deleted} field it is deleted instead. The reply is the
+ * reply of the {@link WriterActor} for the transaction.
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Feb 16, 2010
  */
-public class PutGatewayActor extends HTTPGatewayActor {
+public class PutGatewayActor extends WriterGatewayActor {
+
     @Override
     public void react(Message message) {
-        // FIXME
+        if (!(message instanceof HTTPRequest)) {
+            replyTo(message, HTTP.Status.InternalError, "error",
+                    "Expected HTTPRequest got '%s'",
+                    message.getClass().getName());
+            return;
+        }
+
+        HTTPRequest req = (HTTPRequest)message;
+        String id = extractIdFromUri(req.getUri());
+        if (id == null || id.length() == 0) {
+            replyTo(message, HTTP.Status.BadRequest,
+                    "error", "Invalid box id in '%s'", req.getUri());
+            return;
+        }
+
+        Box box = req.getBody();
+        if (box.getType() != Box.Type.MAP) {
+            replyTo(message, HTTP.Status.BadRequest, "error",
+                    "Expected a MAP, got %s", box.getType());
+            return;
+        }
+
+        String baseName = extractBaseFromUri(req.getUri()).toString();
+        Transaction transaction = new Transaction(baseName);
+        transaction.setReplyTo(message.getReplyTo());
+        try {
+            if (!box.has("_id")) {
+                box.put("_id", id);
+            }
+
+            String error = checkBox(id, box);
+            if (error != null) {
+                replyTo(message, HTTP.Status.BadRequest, "error", "%s", error);
+                return;
+            }
+
+            if (box.has("_deleted")) {
+                transaction.delete(box);
+            } else {
+                transaction.add(box);
+            }
+        } catch (TransactionException e) {
+            replyTo(message, HTTP.Status.InternalError,
+                    "error", e.getMessage());
+            return;
+        } catch (Box.TypeException e) {
+            replyTo(message, HTTP.Status.BadRequest,
+                    "error", e.getMessage());
+            return;
+        } catch (MessageFormatException e) {
+            replyTo(message, HTTP.Status.BadRequest,
+                    "error", e.getMessage());
+            return;
+        }
+
+        send(transaction, findWriterActorForBase(baseName));
     }
 }
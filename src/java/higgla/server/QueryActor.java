@@ -8,19 +8,21 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.TermAttribute;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 import static org.apache.lucene.search.BooleanClause.Occur;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Queries a Lucene index based on Box/JSON templates. The incoming message
@@ -37,6 +39,22 @@ import java.util.Map;
  *   <li>{@code _templates} - a LIST of Box templates results should match.
  *       A Box is considered matching if at matches at least one of the
  *       templates</li>
+ *   <li>{@code _fields} - Optional LIST of field names. If set only these
+ *       top level fields of the matching boxes are returned</li>
+ *   <li>{@code _next} - Optional cursor token from the response to a
+ *       previous execution of the same query. Results start after the
+ *       last box returned in that response, {@code _offset} counts from
+ *       there</li>
+ *   <li>{@code _sort} - Optional LIST of fields to sort the results by
+ *       instead of relevance. Prefix a field name with {@code -} to sort
+ *       descending. The field {@code _score} is the relevance. See
+ *       {@link QueryParser#parseSort} for details</li>
+ *   <li>{@code _export} - If {@code true} the matching boxes are returned
+ *       unscored in the order they are stored in the base. This is the
+ *       cheapest way to walk through a whole result set using
+ *       {@code _next}. It can not be combined with {@code _sort}. There
+ *       is no {@code _total} in the response and the default {@code _count}
+ *       is {@link #DEFAULT_EXPORT_COUNT}</li>
  * </ul>
  * <p/>
  * The QueryActor will reply to {@code box.getReplyTo()} with a
@@ -49,7 +67,11 @@ import java.util.Map;
  *       Integer</li>
  *   <li>{@code _data} - a LIST containing {@code _count} Boxes with the
  *       retrieved results</li>
+ *   <li>{@code _next} - a cursor token for fetching the next page of results
+ *       as described above. Only set if there are more results</li>
  * </ul>
+ * Paging with {@code _next} is much cheaper than using a large
+ * {@code _offset}, since only the hits of the requested page are collected.
  * <p/>
  * So to query all boxes with the word "john" in the
  * field "name" you would send:
@@ -99,33 +121,46 @@ import java.util.Map;
  *     }
  *   }
  * </pre>
+ * <i>Raw mode:</i> If the request contains {@code _raw : true} the stored
+ * boxes are copied straight into the response as JSON text instead of being
+ * decoded into Boxes first. The response is the same, but large pages are
+ * much cheaper to produce.
+ * <p/>
+ * <i>Caching:</i> Query results are kept in the {@link ResultCache} of the
+ * base until the next commit. If the request contains {@code _stats : true}
+ * the reply has an extra field {@code _stats} with the cache statistics.
+ * <p/>
+ * <i>Revalidation:</i> Every reply has a field {@code _etag} with the
+ * version of the index it was computed on, which changes with each commit
+ * to the base. If a request contains {@code _etag} with the current version
+ * no queries are run and the reply is only
+ * <code>{"_etag" : version, "_unchanged" : true}</code>.
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Jan 29, 2010
  */
 public class QueryActor extends BaseActor {
 
-    private BoxParser boxParser;
+    /** Default page size for exports */
+    static final int DEFAULT_EXPORT_COUNT = 1000;
+
+    /** Only load the body when fetching hits */
+    private static final FieldSelector bodySelector =
+                                 new MapFieldSelector(new String[]{"_body"});
+
+    private BoxCodec bodyCodec;
+    private SearcherManager searchers;
+    private ResultCache cache;
     private QueryParser queryParser;
 
     public QueryActor(String baseName) {
         super(baseName);
-        boxParser = new JSonBoxParser();
+        bodyCodec = new BoxCodec();
+        searchers = SearcherManager.forBase(baseName);
+        cache = ResultCache.forBase(baseName);
         queryParser = new QueryParser();
     }
 
-    @Override
-    public void start() {
-        try {
-            getBus().allocateNamedAddress(this,
-                                          QueryActor.baseAddress(baseName));
-        } catch (AddressAlreadyOwnedException e) {
-            // Another QueryActor is already running for this base.
-            // Retract from the bus silently
-            getBus().freeAddress(getAddress());
-        }
-    }
-
     @Override
     public void react(Message message) {
         if (!(message instanceof Box)) {
@@ -150,7 +185,7 @@ public class QueryActor extends BaseActor {
 
         IndexSearcher searcher;
         try {
-            searcher = takeSearcher(baseName);
+            searcher = searchers.acquire();
         } catch (IOException e) {
             e.printStackTrace();
             replyTo(message, HTTP.Status.InternalError, "error",
@@ -159,17 +194,37 @@ public class QueryActor extends BaseActor {
         }
 
         // Any key in the query MAP not starting with _ is to be
-        // executed as a single query
-        Box reply = Box.newMap();
+        // executed as a single query. All queries run in parallel against
+        // the same searcher
+        Box reply = null;
         HTTP.Status status = HTTP.Status.OK;
         try {
+            long etag = searcher.getIndexReader().getVersion();
+            if (box.has("_etag") && box.getLong("_etag") == etag) {
+                reply = Box.newMap()
+                           .put("_etag", etag)
+                           .put("_unchanged", true);
+                return;
+            }
+
+            boolean raw = box.getBoolean("_raw", false);
+            Map<String,Callable<Box>> jobs =
+                                    new LinkedHashMap<String,Callable<Box>>();
             for (Map.Entry<String,Box> queryBox : box.getMap().entrySet()) {
-                // FIXME: Parallelize queries
                 if (queryBox.getKey().startsWith("_")) {
                     continue;
                 }
-                Box result = executeQuery(queryBox.getValue(), searcher);
-                reply.put(queryBox.getKey(), result);
+                jobs.put(queryBox.getKey(),
+                         new QueryJob(queryBox.getValue(), searcher, raw));
+            }
+            reply = invokeAll(jobs);
+            reply.put("_etag", etag);
+            if (box.getBoolean("_stats", false)) {
+                reply.put("_stats", cache.getStats());
+            }
+            if (raw) {
+                // Splice the raw results into a raw reply
+                reply = new RawJsonBox().appendBox(reply);
             }
         } catch (MessageFormatException e) {
             reply = formatMessage("error",
@@ -191,7 +246,7 @@ public class QueryActor extends BaseActor {
             status = HTTP.Status.InternalError;
         } finally {
             try {
-                releaseSearcher(searcher);
+                searchers.release(searcher);
             } catch (IOException e) {
                 reply = formatMessage("error",
                                       "Error releasing searcher: %s",
@@ -203,56 +258,156 @@ public class QueryActor extends BaseActor {
         }
     }
 
-    private Box executeQuery(Box queryBox, IndexSearcher searcher)
+    private Box executeQuery(Box queryBox, IndexSearcher searcher,
+                             boolean raw)
                  throws MessageFormatException, Box.TypeException, IOException {
         if (queryBox.getMap().size() == 0) {
             return formatMessage("error", "Empty query");
         }
 
         Box templates = queryBox.get("_templates");
+        boolean export = queryBox.getBoolean("_export", false);
         int offset = (int)queryBox.getLong("_offset", 0);
-        int count = (int)queryBox.getLong("_count", 20);
+        int count = (int)queryBox.getLong(
+                              "_count", export ? DEFAULT_EXPORT_COUNT : 20);
+        Set<String> fields = parseFields(queryBox);
+        String after = queryBox.getString("_next", null);
 
         if (templates == null) {
             throw new MessageFormatException(
                                   "Query does not contain a _templates list");
         }
 
+        if (export && queryBox.has("_sort")) {
+            throw new MessageFormatException(
+                                  "_export can not be combined with _sort");
+        }
+
         Query query = queryParser.parseTemplates(templates.getList());
+        Sort sort = null;
+        if (queryBox.has("_sort")) {
+            sort = queryParser.parseSort(
+                       queryBox.getList("_sort"), searcher.getIndexReader());
+        }
 
-        // Execute query, collect __body__ fields, parse them as Boxes,
+        ScoreDoc[] hits;
+        int total;
+        boolean hasMore;
+        if (export) {
+            // Unscored scan in document order. Counting all hits would
+            // defeat the purpose so there is no total
+            ExportScanner scanner = new ExportScanner(searcher, query);
+            int afterDoc = after == null ? -1 : Cursor.parse(after).doc;
+            hits = scanner.scan(afterDoc, offset+count);
+            total = -1;
+            hasMore = scanner.hasMore();
+        } else if (after == null && sort == null) {
+            TopDocs docs = searcher.search(query, offset+count);
+            hits = docs.scoreDocs;
+            total = docs.totalHits;
+            hasMore = docs.totalHits > offset+count;
+        } else {
+            SearchAfterCollector collector = new SearchAfterCollector(
+                              sort != null ? sort : Sort.RELEVANCE,
+                              after != null ? Cursor.parse(after) : null,
+                              offset+count);
+            searcher.search(query, collector);
+            TopDocs docs = collector.topDocs();
+            hits = docs.scoreDocs;
+            total = docs.totalHits;
+            hasMore = collector.getNumAfter() > offset+count;
+        }
+
+        // Hand out a cursor pointing at the last hit if there are more
+        Cursor next = null;
+        if (hasMore && hits.length > 0) {
+            next = new Cursor(hits[hits.length - 1]);
+        }
+
+        if (raw) {
+            return formatRaw(hits, offset, total, next, fields, searcher);
+        }
+
+        // Execute query, collect _body fields, decode them as Boxes,
         // and return to sender
         Box envelope = Box.newMap();
         Box results = Box.newList();
-        TopDocs docs = searcher.search(query, offset+count);
-
-        for (ScoreDoc scoreDoc : docs.scoreDocs) {
+        for (ScoreDoc scoreDoc : hits) {
             if (--offset >= 0) continue; // skip the first 'offset'-hits
 
-            Document doc = searcher.doc(scoreDoc.doc);
-            Box resultBox = boxParser.parse(
-                    doc.getField("_body").stringValue());
+            Document doc = searcher.doc(scoreDoc.doc, bodySelector);
+            Box resultBox = bodyCodec.decode(
+                                            doc.getFieldable("_body"), fields);
             results.add(resultBox);
         }
         envelope.put("_count", results.size());
-        envelope.put("_total", docs.totalHits);
+        if (total >= 0) {
+            envelope.put("_total", total);
+        }
         envelope.put("_data", results);
+        if (next != null) {
+            envelope.put("_next", next.toString());
+        }
 
         return envelope;
     }
 
-    private IndexSearcher takeSearcher(String base) throws IOException {
-        // FIXME: Optimize this by caching the reader/searcher
-        File indexDir = new File(base);
-        IndexReader reader = IndexReader.open(FSDirectory.open(indexDir));
-        return new IndexSearcher(reader);
-    }
+    /* Like the envelope built by executeQuery(), but with the stored
+     * bodies copied directly into JSON text */
+    private Box formatRaw(ScoreDoc[] hits, int offset, int total, Cursor next,
+                          Set<String> fields, IndexSearcher searcher)
+                                                          throws IOException {
+        RawJsonBox envelope = new RawJsonBox();
+        envelope.appendRaw("{\"_data\":[");
+        int numResults = 0;
+        for (ScoreDoc scoreDoc : hits) {
+            if (--offset >= 0) continue; // skip the first 'offset'-hits
 
-    private void releaseSearcher(IndexSearcher searcher) throws IOException {
-        if (searcher != null) searcher.close();
+            if (numResults++ > 0) {
+                envelope.append(',');
+            }
+            Document doc = searcher.doc(scoreDoc.doc, bodySelector);
+            bodyCodec.writeJson(doc.getFieldable("_body"), envelope, fields);
+        }
+        envelope.appendRaw("],\"_count\":").append(numResults);
+        if (total >= 0) {
+            envelope.appendRaw(",\"_total\":").append(total);
+        }
+        if (next != null) {
+            envelope.appendRaw(",\"_next\":").appendString(next.toString());
+        }
+        return envelope.append('}');
     }
 
+    private class QueryJob implements Callable<Box> {
+        private Box queryBox;
+        private IndexSearcher searcher;
+        private boolean raw;
 
+        public QueryJob(Box queryBox, IndexSearcher searcher, boolean raw) {
+            this.queryBox = queryBox;
+            this.searcher = searcher;
+            this.raw = raw;
+        }
+
+        public Box call() throws IOException {
+            // Exports walk through whole result sets and are not worth
+            // keeping around
+            if (queryBox.getType() == Box.Type.MAP &&
+                queryBox.getBoolean("_export", false)) {
+                return executeQuery(queryBox, searcher, raw);
+            }
+
+            long version = searcher.getIndexReader().getVersion();
+            String key = ResultCache.key("query", queryBox, raw);
+            Box result = cache.get(version, key);
+            if (result == null) {
+                result = executeQuery(queryBox, searcher, raw);
+                cache.put(version, key, result);
+            }
+            return result;
+        }
+    }
 
     public static String baseAddress(CharSequence base) {
         return "/_query_"+base;
@@ -9,9 +9,10 @@ import juglr.net.HTTPRequest;
 /**
  * Takes a {@link HTTPRequest} and routes it to the right delegate.
  * If the request body is a MAP then it's passed to a {@link QueryActor} -
- * and if it's a LIST it's passed to a {@link GetActor}. In either case,
- * if the recipient actor isn't registered on the bus it will be created
- * automatically.
+ * and if it's a LIST, or a MAP with an {@code _ids} field, it's passed to
+ * a {@link GetActor}. In either case,
+ * if the recipient isn't registered on the bus an {@link ActorPool} of
+ * recipient actors will be created for the base automatically.
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Feb 17, 2010
@@ -35,10 +36,12 @@ public class QueryGatewayActor extends HTTPGatewayActor {
         body.setReplyTo(message.getReplyTo());
 
         Address delegate;
-        if (body.getType() == Box.Type.MAP) {
+        if (body.getType() == Box.Type.MAP && !body.has("_ids")) {
              delegate = findQueryActorForUri(req.getUri());
-        } else if (body.getType() == Box.Type.LIST) {
-            delegate = findGetActorForUri(req.getUri());
+        } else if (body.getType() == Box.Type.MAP ||
+                   body.getType() == Box.Type.LIST) {
+            delegate = findGetActorForBase(
+                            extractBaseFromUri(req.getUri()).toString());
         } else {
             replyTo(message, HTTP.Status.BadRequest,
                     "error", "Expected MAP or LIST. Found %s", body.getType());
@@ -52,22 +55,15 @@ public class QueryGatewayActor extends HTTPGatewayActor {
         Address queryAddress = getBus().lookup(QueryActor.baseAddress(base));
 
         if (queryAddress == null) {
-            queryAddress = new QueryActor(base.toString()).getAddress();
+            QueryActor[] members = new QueryActor[ActorPool.DEFAULT_SIZE];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = new QueryActor(base.toString());
+            }
+            queryAddress = ActorPool.newForActors(
+                       QueryActor.baseAddress(base), members).getAddress();
             getBus().start(queryAddress);
         }
 
         return queryAddress;
     }
-
-    private Address findGetActorForUri(CharSequence uri) {
-        String base = extractBaseFromUri(uri).toString();
-        Address getAddress = getBus().lookup(GetActor.baseAddress(base));
-
-        if (getAddress == null) {
-            getAddress = new GetActor(base).getAddress();
-            getBus().start(getAddress);
-        }
-
-        return getAddress;
-    }
 }
@@ -6,24 +6,74 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
 
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
- * FIXME: Missing class docs for higgla.server.QueryParser
+ * Parses query templates into Lucene queries. Each template is a MAP of
+ * field specs to values, all of which must match. A box matches the
+ * query if it matches any of the templates.
+ * <p/>
+ * A field spec is a field name with optional markers:
+ * <ul>
+ *   <li>{@code !field} - the value must not match</li>
+ *   <li>{@code field*} - prefix match on a STRING value</li>
+ *   <li>{@code field>}, {@code field>=}, {@code field<}, {@code field<=} -
+ *       open ended range with the value as bound</li>
+ *   <li>{@code field~} - inclusive range, the value is a LIST of the lower
+ *       and upper bound</li>
+ * </ul>
+ * Ranges with INT or FLOAT bounds are matched against the trie encoded
+ * numeric fields, ranges with STRING bounds against the indexed terms.
+ * A template without any fields, or with negated fields only, matches all
+ * boxes not excluded by its negations.
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Feb 19, 2010
  */
 public class QueryParser {
 
+    /**
+     * Maximum number of parsed template lists kept in the query cache. Set it
+     * with the system property {@code higgla.parser.cache}. A size of 0
+     * disables the cache
+     */
+    public static final int QUERY_CACHE_SIZE = Math.max(
+                            0, Integer.getInteger("higgla.parser.cache", 1000));
+
+    /* Parsed queries shared by all parsers, keyed by canonical JSON. The
+     * queries are never modified after parsing, so they can be used by
+     * several searches at once */
+    private static final Map<String,Query> queryCache =
+         Collections.synchronizedMap(new LinkedHashMap<String,Query>(
+                                                          16, 0.75f, true) {
+             private static final long serialVersionUID = 1L;
+
+             @Override
+             protected boolean removeEldestEntry(
+                                             Map.Entry<String,Query> eldest) {
+                 return size() > QUERY_CACHE_SIZE;
+             }
+         });
+
+    /* Analysis of these values yields the lower cased value as single term,
+     * so it can be skipped */
+    private static final Pattern SIMPLE_TOKEN =
+                                         Pattern.compile("[a-zA-Z0-9]{1,255}");
+
     private Analyzer indexedFieldAnalyzer;
 
     public QueryParser() {
@@ -31,8 +81,29 @@ public class QueryParser {
                                  Version.LUCENE_CURRENT, Collections.EMPTY_SET);
     }
 
+    /**
+     * Parse a LIST of query templates. Parsed queries are cached, the caller
+     * must not modify the returned query
+     * @param templates the templates to parse
+     * @return a query matching the boxes matching any of the templates
+     * @throws MessageFormatException if the templates are malformed
+     */
     public Query parseTemplates (List<Box> templates)
                                                  throws MessageFormatException {
+        if (QUERY_CACHE_SIZE == 0) {
+            return buildQuery(templates);
+        }
+
+        String key = ResultCache.canonical(new Box(templates));
+        Query q = queryCache.get(key);
+        if (q == null) {
+            q = buildQuery(templates);
+            queryCache.put(key, q);
+        }
+        return q;
+    }
+
+    private Query buildQuery(List<Box> templates) {
         BooleanQuery q = new BooleanQuery();
         for (Box tmpl : templates) {
             tmpl.checkType(Box.Type.MAP);
@@ -42,6 +113,11 @@ public class QueryParser {
                 FieldSpec field = parseFieldSpec(entry.getKey());
 
                 Box valueBox = entry.getValue();
+                if (field.range != Range.NONE) {
+                    qTmpl.add(parseRangeQuery(field, valueBox), field.occur);
+                    continue;
+                }
+
                 switch (valueBox.getType()) {
                     case INT:
                         long lval = valueBox.getLong();
@@ -73,16 +149,229 @@ public class QueryParser {
                         throw new UnsupportedOperationException("FIXME");
                 }
             }
+
+            // A template without required clauses matches all boxes
+            // not excluded by its negations
+            if (!hasRequiredClause(qTmpl)) {
+                qTmpl.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+            }
             q.add(qTmpl, BooleanClause.Occur.SHOULD);
         }
 
         return q;
     }
 
+    private static boolean hasRequiredClause(BooleanQuery q) {
+        for (BooleanClause clause : q.getClauses()) {
+            if (!clause.isProhibited()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the {@code _sort} LIST of a query. Each element is either a
+     * field name, sorting ascending, or a field name prefixed by {@code -},
+     * sorting descending. An element may also be a MAP with the fields
+     * {@code field}, {@code order} ({@code "asc"} or {@code "desc"}) and
+     * {@code type} ({@code "number"} or {@code "string"}).
+     * <p/>
+     * The special field {@code _score} sorts by relevance, best hits first
+     * unless descending order is requested. If the type of a field is not
+     * given it is detected by looking at the terms of the field in
+     * {@code reader}. Numeric fields are sorted as longs, which only works
+     * for INT values. FLOAT values are indexed as the bits of a double and
+     * would not compare correctly with INTs, so sorting on a field that
+     * holds FLOAT values in any box is rejected. Boxes without a value for
+     * a numeric field sort as 0. Boxes without a value for a string field
+     * sort first. Sorting on strings only makes sense for fields with a
+     * single term per box, like {@code _id} and booleans.
+     * @param sortSpecs the sort specification from the query
+     * @param reader reader used to detect the type of fields
+     * @return the sort order
+     * @throws MessageFormatException if the specification is malformed or
+     *                                names a field with FLOAT values
+     * @throws IOException on errors reading the index
+     */
+    public Sort parseSort(List<Box> sortSpecs, IndexReader reader)
+                                                           throws IOException {
+        if (sortSpecs.size() == 0) {
+            throw new MessageFormatException("Empty _sort list");
+        }
+
+        SortField[] sortFields = new SortField[sortSpecs.size()];
+        for (int i = 0; i < sortFields.length; i++) {
+            Box spec = sortSpecs.get(i);
+            String field;
+            boolean reverse = false;
+            String type = null;
+
+            if (spec.getType() == Box.Type.STRING) {
+                field = spec.getString();
+                if (field.startsWith("-")) {
+                    reverse = true;
+                    field = field.substring(1);
+                }
+            } else if (spec.getType() == Box.Type.MAP) {
+                field = spec.getString("field");
+                String order = spec.getString("order", "asc");
+                if ("desc".equals(order)) {
+                    reverse = true;
+                } else if (!"asc".equals(order)) {
+                    throw new MessageFormatException(
+                                          "Invalid sort order '" + order + "'");
+                }
+                type = spec.getString("type", null);
+            } else {
+                throw new MessageFormatException(
+                       "Sort fields must be STRING or MAP, got "
+                       + spec.getType());
+            }
+
+            if (field.length() == 0) {
+                throw new MessageFormatException("Empty sort field name");
+            }
+
+            if ("_score".equals(field)) {
+                sortFields[i] = new SortField(null, SortField.SCORE, reverse);
+                continue;
+            }
+
+            if (type == null) {
+                type = isNumeric(field, reader) ? "number" : "string";
+            }
+
+            if ("number".equals(type)) {
+                if (hasFloats(field, reader)) {
+                    throw new MessageFormatException(
+                            "Can not sort on '" + field + "', it holds FLOAT "
+                            + "values");
+                }
+                sortFields[i] = new SortField(
+                     field, FieldCache.NUMERIC_UTILS_LONG_PARSER, reverse);
+            } else if ("string".equals(type)) {
+                sortFields[i] = new SortField(field, SortField.STRING, reverse);
+            } else {
+                throw new MessageFormatException(
+                                          "Invalid sort type '" + type + "'");
+            }
+        }
+
+        return new Sort(sortFields);
+    }
+
+    /* NumericFields index their full precision terms with a shift prefix
+     * that sorts before any other term of the field */
+    static boolean isNumeric(String field, IndexReader reader)
+                                                           throws IOException {
+        TermEnum terms = reader.terms(new Term(field, ""));
+        try {
+            Term term = terms.term();
+            return term != null && term.field().equals(field) &&
+                   term.text().length() > 0 &&
+                   term.text().charAt(0) == NumericUtils.SHIFT_START_LONG;
+        } finally {
+            terms.close();
+        }
+    }
+
+    /* INT and FLOAT values are indexed with the same kind of terms, the
+     * DocumentBuilder records the fields holding FLOAT values */
+    static boolean hasFloats(String field, IndexReader reader)
+                                                           throws IOException {
+        return reader.docFreq(
+                         new Term(DocumentBuilder.FLOAT_FIELDS, field)) > 0;
+    }
+
+    /* Create a NumericRangeQuery or a TermRangeQuery for a field spec
+     * with a range operator. Numeric bounds must all be INTs or use
+     * a double range if any of them is a FLOAT, matching how the writer
+     * indexes numbers. String bounds are lower cased like the indexed
+     * terms */
+    private Query parseRangeQuery(FieldSpec field, Box valueBox) {
+        Box lower = null, upper = null;
+        boolean includeLower = true, includeUpper = true;
+
+        switch (field.range) {
+            case GT:
+                lower = valueBox;
+                includeLower = false;
+                break;
+            case GE:
+                lower = valueBox;
+                break;
+            case LT:
+                upper = valueBox;
+                includeUpper = false;
+                break;
+            case LE:
+                upper = valueBox;
+                break;
+            case BETWEEN:
+                valueBox.checkType(Box.Type.LIST);
+                if (valueBox.getList().size() != 2) {
+                    throw new MessageFormatException(
+                            "Range on '" + field.name + "' must be a LIST of "
+                            + "two bounds, got " + valueBox.getList().size());
+                }
+                lower = valueBox.getList().get(0);
+                upper = valueBox.getList().get(1);
+                break;
+        }
+
+        if (isNumber(lower) && (upper == null || isNumber(upper)) ||
+            lower == null && isNumber(upper)) {
+            if (isFloat(lower) || isFloat(upper)) {
+                return NumericRangeQuery.newDoubleRange(field.name,
+                                  toDouble(lower), toDouble(upper),
+                                  includeLower, includeUpper);
+            }
+            return NumericRangeQuery.newLongRange(field.name,
+                                  lower == null ? null : lower.getLong(),
+                                  upper == null ? null : upper.getLong(),
+                                  includeLower, includeUpper);
+        }
+
+        if (lower != null) {
+            lower.checkType(Box.Type.STRING);
+        }
+        if (upper != null) {
+            upper.checkType(Box.Type.STRING);
+        }
+        return new TermRangeQuery(field.name,
+                      lower == null ?
+                              null : lower.getString().toLowerCase(Locale.ENGLISH),
+                      upper == null ?
+                              null : upper.getString().toLowerCase(Locale.ENGLISH),
+                      includeLower, includeUpper);
+    }
+
+    private static boolean isNumber(Box box) {
+        return box != null && (box.getType() == Box.Type.INT ||
+                               box.getType() == Box.Type.FLOAT);
+    }
+
+    private static boolean isFloat(Box box) {
+        return box != null && box.getType() == Box.Type.FLOAT;
+    }
+
+    private static Double toDouble(Box box) {
+        if (box == null) {
+            return null;
+        }
+        return isFloat(box) ? box.getFloat() : (double)box.getLong();
+    }
+
     /* Create a query on a given field by tokenizing a string with
      * the indexAnalyzer, joining all terms with the boolean op. termJoin */
     private Query parseIndexedFieldQuery(
                      String field, String query, BooleanClause.Occur termJoin) {
+        if (SIMPLE_TOKEN.matcher(query).matches()) {
+            return new TermQuery(
+                           new Term(field, query.toLowerCase(Locale.ENGLISH)));
+        }
+
         BooleanQuery indexQuery = new BooleanQuery();
         try {
             TokenStream tokens = indexedFieldAnalyzer.reusableTokenStream(
@@ -103,20 +392,37 @@ public class QueryParser {
     }
 
 
+    private static enum Range { NONE, GT, GE, LT, LE, BETWEEN }
+
+    /* Suffixes of field names selecting a range query, longest first */
+    private static final String[] RANGE_SUFFIXES = {
+                                                ">=", "<=", ">", "<", "~"};
+    private static final Range[] RANGE_OPS = {
+                         Range.GE, Range.LE, Range.GT, Range.LT, Range.BETWEEN};
+
     private static class FieldSpec {
         public BooleanClause.Occur occur;
         public String name;
         public boolean isPrefix;
         public boolean isNegated;
+        public Range range = Range.NONE;
     }
 
     private FieldSpec parseFieldSpec(String field) {
         FieldSpec spec = new FieldSpec();
         spec.occur = BooleanClause.Occur.MUST;
+
+        for (int i = 0; i < RANGE_SUFFIXES.length; i++) {
+            if (field.endsWith(RANGE_SUFFIXES[i])) {
+                spec.range = RANGE_OPS[i];
+                field = field.substring(
+                               0, field.length() - RANGE_SUFFIXES[i].length());
+                break;
+            }
+        }
+
         spec.isNegated = field.startsWith("!");
-        spec.isPrefix = field.endsWith("*");
-        // Note: We could use other begin/end chars, like <, >, +, - etc.
-        //       to define range queries etc.
+        spec.isPrefix = spec.range == Range.NONE && field.endsWith("*");
 
         if (spec.isNegated && spec.isPrefix) {
             spec.name = field.substring(1, field.length() -1);
@@ -0,0 +1,213 @@
+package higgla.server;
+
+import juglr.Box;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response body holding JSON text that has already been serialized.
+ * The HTTP server writes a response by calling {@link #toBytes()} on the
+ * body, which for this class simply returns the accumulated bytes. This
+ * lets actors copy stored box bodies into a response without building a
+ * {@link Box} tree for each of them first.
+ * <p/>
+ * The JSON text is appended with the {@code append*} and {@code write*}
+ * methods. The caller is responsible for producing well formed JSON. Apart
+ * from {@code toBytes()} and {@code toString()} none of the Box accessors
+ * see the raw content, the box looks like an empty MAP.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 8, 2010
+ */
+public class RawJsonBox extends Box {
+
+    private static final long serialVersionUID = 1L;
+
+    private byte[] buf;
+    private int pos;
+
+    public RawJsonBox() {
+        this(1024);
+    }
+
+    public RawJsonBox(int capacity) {
+        super(Type.MAP);
+        buf = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Append JSON text verbatim
+     * @param json well formed JSON text
+     * @return this box
+     */
+    public RawJsonBox appendRaw(String json) {
+        byte[] bytes = json.getBytes(BoxCodec.UTF8);
+        return appendRaw(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Append UTF-8 encoded JSON text verbatim
+     * @param data array holding the JSON text
+     * @param offset offset of the text in {@code data}
+     * @param length number of bytes to copy
+     * @return this box
+     */
+    public RawJsonBox appendRaw(byte[] data, int offset, int length) {
+        ensure(length);
+        System.arraycopy(data, offset, buf, pos, length);
+        pos += length;
+        return this;
+    }
+
+    public RawJsonBox append(char c) {
+        ensure(1);
+        buf[pos++] = (byte)c;
+        return this;
+    }
+
+    public RawJsonBox append(long value) {
+        return appendRaw(Long.toString(value));
+    }
+
+    public RawJsonBox append(double value) {
+        return appendRaw(Double.toString(value));
+    }
+
+    public RawJsonBox append(boolean value) {
+        return appendRaw(value ? "true" : "false");
+    }
+
+    /**
+     * Append {@code s} as a quoted and escaped JSON string
+     * @param s the string to append
+     * @return this box
+     */
+    public RawJsonBox appendString(String s) {
+        byte[] bytes = s.getBytes(BoxCodec.UTF8);
+        return appendString(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Append UTF-8 encoded text as a quoted and escaped JSON string
+     * @param data array holding the UTF-8 text
+     * @param offset offset of the text in {@code data}
+     * @param length number of bytes in the text
+     * @return this box
+     */
+    public RawJsonBox appendString(byte[] data, int offset, int length) {
+        ensure(length + 2);
+        buf[pos++] = '"';
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == '"' || b == '\\' || (b >= 0 && b < 0x20)) {
+                appendRaw(data, start, i - start);
+                escape(b);
+                start = i + 1;
+            }
+        }
+        appendRaw(data, start, end - start);
+        return append('"');
+    }
+
+    /**
+     * Append the JSON representation of {@code box}
+     * @param box the box to serialize
+     * @return this box
+     */
+    public RawJsonBox appendBox(Box box) {
+        if (box instanceof RawJsonBox) {
+            RawJsonBox raw = (RawJsonBox)box;
+            return appendRaw(raw.buf, 0, raw.pos);
+        }
+
+        switch (box.getType()) {
+            case INT:
+                return append(box.getLong());
+            case FLOAT:
+                return append(box.getFloat());
+            case BOOLEAN:
+                return append(box.getBoolean());
+            case STRING:
+                return appendString(box.getString());
+            case MAP:
+                append('{');
+                boolean first = true;
+                for (Map.Entry<String,Box> entry : box.getMap().entrySet()) {
+                    if (!first) {
+                        append(',');
+                    }
+                    first = false;
+                    appendString(entry.getKey());
+                    append(':');
+                    appendBox(entry.getValue());
+                }
+                return append('}');
+            case LIST:
+                append('[');
+                List<Box> list = box.getList();
+                for (int i = 0; i < list.size(); i++) {
+                    if (i > 0) {
+                        append(',');
+                    }
+                    appendBox(list.get(i));
+                }
+                return append(']');
+            default:
+                throw new IllegalArgumentException(
+                                     "Unsupported box type " + box.getType());
+        }
+    }
+
+    /**
+     * Get the number of bytes of JSON text in this box
+     * @return the length of the JSON text in bytes
+     */
+    public int length() {
+        return pos;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        byte[] result = new byte[pos];
+        System.arraycopy(buf, 0, result, 0, pos);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, pos, BoxCodec.UTF8);
+    }
+
+    private void escape(byte b) {
+        switch (b) {
+            case '"':
+                appendRaw("\\\"");
+                break;
+            case '\\':
+                appendRaw("\\\\");
+                break;
+            case '\n':
+                appendRaw("\\n");
+                break;
+            case '\r':
+                appendRaw("\\r");
+                break;
+            case '\t':
+                appendRaw("\\t");
+                break;
+            default:
+                appendRaw(String.format("\\u%04x", b));
+        }
+    }
+
+    private void ensure(int needed) {
+        if (pos + needed > buf.length) {
+            byte[] tmp = new byte[Math.max(2*buf.length, pos + needed)];
+            System.arraycopy(buf, 0, tmp, 0, pos);
+            buf = tmp;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package higgla.server;
+
+import juglr.Box;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A least recently used cache of query and count results for a base. The
+ * actors reading from a base look up their results here before doing any
+ * Lucene work, keyed by a canonical form of the request, see
+ * {@link #key(String, Box, boolean)}.
+ * <p/>
+ * Each entry is tied to the version of the index reader it was computed
+ * on. When a request arrives with a searcher on a newer version, that is
+ * after the {@link WriterActor} has committed, the whole cache is dropped.
+ * Requests still running on an older searcher neither read from nor write
+ * to the cache.
+ * <p/>
+ * The maximum number of entries is {@link #CACHE_SIZE}. It can be set with
+ * the system property {@code higgla.cache.size} and defaults to 1000.
+ * A size of 0 disables the cache.
+ * <p/>
+ * There is exactly one ResultCache per base name, look it up with
+ * {@link #forBase(String)}.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 11, 2010
+ */
+public class ResultCache {
+
+    public static final int CACHE_SIZE = Math.max(
+                              0, Integer.getInteger("higgla.cache.size", 1000));
+
+    private static final ConcurrentMap<String,ResultCache> caches =
+                                 new ConcurrentHashMap<String,ResultCache>();
+
+    private final Map<String,Box> entries; // guarded by 'this'
+    private long version = -1;             // guarded by 'this'
+    private long hits;                     // guarded by 'this'
+    private long misses;                   // guarded by 'this'
+    private long evictions;                // guarded by 'this'
+    private long invalidations;            // guarded by 'this'
+
+    private ResultCache() {
+        entries = new LinkedHashMap<String,Box>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Box> eldest) {
+                if (size() > CACHE_SIZE) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the ResultCache for {@code baseName}, creating it if it does not
+     * exist yet
+     * @param baseName the name of the base
+     * @return the unique ResultCache for the base
+     */
+    public static ResultCache forBase(String baseName) {
+        ResultCache cache = caches.get(baseName);
+        if (cache == null) {
+            cache = new ResultCache();
+            ResultCache race = caches.putIfAbsent(baseName, cache);
+            if (race != null) {
+                cache = race;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Look up a cached result
+     * @param readerVersion the version of the reader the request runs on
+     * @param key the key of the request as returned by {@link #key}
+     * @return the cached result or {@code null}
+     */
+    public synchronized Box get(long readerVersion, String key) {
+        if (!checkVersion(readerVersion)) {
+            return null;
+        }
+
+        Box result = entries.get(key);
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    /**
+     * Store a result computed on the reader with the given version. The
+     * result must not be modified afterwards
+     * @param readerVersion the version of the reader the result comes from
+     * @param key the key of the request as returned by {@link #key}
+     * @param result the result to cache
+     */
+    public synchronized void put(long readerVersion, String key, Box result) {
+        if (CACHE_SIZE > 0 && checkVersion(readerVersion)) {
+            entries.put(key, result);
+        }
+    }
+
+    /**
+     * Get the cache statistics as a MAP with the fields {@code size},
+     * {@code hits}, {@code misses}, {@code evictions} and
+     * {@code invalidations} - the number of times the cache was dropped
+     * because of a commit
+     * @return a MAP box with the current statistics
+     */
+    public synchronized Box getStats() {
+        Box stats = Box.newMap();
+        stats.put("size", entries.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+
+    /* Drop all entries if the reader is newer than the one they were
+     * computed on. Return false if the reader is older */
+    private boolean checkVersion(long readerVersion) {
+        if (readerVersion > version) {
+            if (entries.size() > 0) {
+                entries.clear();
+                invalidations++;
+            }
+            version = readerVersion;
+        }
+        return readerVersion == version;
+    }
+
+    /**
+     * Create a cache key for a request. The key is the canonical JSON of
+     * the request, so requests differing only in the order of their fields
+     * share an entry
+     * @param kind distinguishes the actors sharing the cache
+     * @param request the query as sent by the client
+     * @param raw whether the result is in raw mode
+     * @return the cache key
+     */
+    public static String key(String kind, Box request, boolean raw) {
+        StringBuilder buf = new StringBuilder(kind);
+        buf.append(raw ? ":raw:" : ":");
+        appendCanonical(request, buf);
+        return buf.toString();
+    }
+
+    /**
+     * Serialize a box as JSON with all MAP keys sorted
+     * @param box the box to serialize
+     * @return the canonical JSON of {@code box}
+     */
+    public static String canonical(Box box) {
+        StringBuilder buf = new StringBuilder();
+        appendCanonical(box, buf);
+        return buf.toString();
+    }
+
+    private static void appendCanonical(Box box, StringBuilder buf) {
+        switch (box.getType()) {
+            case INT:
+                buf.append(box.getLong());
+                break;
+            case FLOAT:
+                buf.append(box.getFloat());
+                break;
+            case BOOLEAN:
+                buf.append(box.getBoolean());
+                break;
+            case STRING:
+                appendString(box.getString(), buf);
+                break;
+            case MAP:
+                buf.append('{');
+                boolean first = true;
+                Map<String,Box> sorted = new TreeMap<String,Box>(box.getMap());
+                for (Map.Entry<String,Box> entry : sorted.entrySet()) {
+                    if (!first) {
+                        buf.append(',');
+                    }
+                    first = false;
+                    appendString(entry.getKey(), buf);
+                    buf.append(':');
+                    appendCanonical(entry.getValue(), buf);
+                }
+                buf.append('}');
+                break;
+            case LIST:
+                buf.append('[');
+                List<Box> list = box.getList();
+                for (int i = 0; i < list.size(); i++) {
+                    if (i > 0) {
+                        buf.append(',');
+                    }
+                    appendCanonical(list.get(i), buf);
+                }
+                buf.append(']');
+                break;
+        }
+    }
+
+    private static void appendString(String s, StringBuilder buf) {
+        buf.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\');
+            }
+            buf.append(c);
+        }
+        buf.append('"');
+    }
+}
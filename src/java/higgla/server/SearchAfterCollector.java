@@ -0,0 +1,291 @@
+package higgla.server;
+
+import juglr.MessageFormatException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.io.IOException;
+
+/**
+ * Collects the top hits of a {@link Sort} following a {@link Cursor}. Only
+ * hits after the cursor enter the priority queue, so the cost of a page is
+ * proportional to the page size, no matter how deep into the result set
+ * the cursor points.
+ * <p/>
+ * The supported sort fields are {@code SortField.SCORE}, {@code LONG} and
+ * {@code STRING}. Field values are read from the {@link FieldCache}. Ties
+ * are broken by document number, so the order is total and a cursor
+ * always points at a single position. Hits compete without allocating
+ * anything, and only hits entering the queue create a {@link FieldHit}.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 9, 2010
+ */
+public class SearchAfterCollector extends Collector {
+
+    private SortField[] sortFields;
+    private Cursor after;
+    private HitQueue queue;
+    private int numHits;
+    private Scorer scorer;
+    private boolean needsScores;
+    private int docBase;
+    private int totalHits;
+    private int numAfter;
+    private float maxScore = Float.NEGATIVE_INFINITY;
+
+    /* Per segment field values, indexed like sortFields */
+    private long[][] longValues;
+    private FieldCache.StringIndex[] stringValues;
+
+    /**
+     * @param sort the sort order of the hits
+     * @param after only collect hits after this cursor, or {@code null} to
+     *              start from the beginning
+     * @param numHits the maximum number of hits to collect
+     * @throws MessageFormatException if the cursor does not match the sort
+     */
+    public SearchAfterCollector(Sort sort, Cursor after, int numHits) {
+        sortFields = sort.getSort();
+        this.after = after;
+        this.numHits = Math.max(1, numHits);
+        queue = new HitQueue(this.numHits);
+        longValues = new long[sortFields.length][];
+        stringValues = new FieldCache.StringIndex[sortFields.length];
+
+        for (SortField sortField : sortFields) {
+            switch (sortField.getType()) {
+                case SortField.SCORE:
+                    needsScores = true;
+                    break;
+                case SortField.LONG:
+                case SortField.STRING:
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                                         "Unsupported sort field " + sortField);
+            }
+        }
+
+        if (after != null) {
+            checkCursor(after);
+        }
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        float score = needsScores ? scorer.score() : Float.NaN;
+        totalHits++;
+        if (needsScores) {
+            maxScore = Math.max(score, maxScore);
+        }
+
+        if (after != null &&
+            compare(doc, score, after.values, after.doc) <= 0) {
+            return;
+        }
+        numAfter++;
+
+        if (queue.size() == numHits) {
+            FieldHit bottom = queue.top();
+            if (compare(doc, score, bottom.values, bottom.doc) >= 0) {
+                return;
+            }
+            queue.pop();
+        }
+        queue.add(newHit(doc, score));
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase)
+                                                          throws IOException {
+        this.docBase = docBase;
+        for (int i = 0; i < sortFields.length; i++) {
+            SortField sortField = sortFields[i];
+            switch (sortField.getType()) {
+                case SortField.LONG:
+                    longValues[i] = FieldCache.DEFAULT.getLongs(
+                         reader, sortField.getField(),
+                         (FieldCache.LongParser)sortField.getParser());
+                    break;
+                case SortField.STRING:
+                    stringValues[i] = FieldCache.DEFAULT.getStringIndex(
+                                                reader, sortField.getField());
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    /**
+     * Get the number of matching hits after the cursor
+     * @return the number of hits after the cursor
+     */
+    public int getNumAfter() {
+        return numAfter;
+    }
+
+    /**
+     * Get the collected hits. {@code totalHits} is the total number of
+     * matching hits in the base, also the ones before the cursor
+     * @return the hits after the cursor in sort order. Each hit is a
+     *         {@link FieldHit}
+     */
+    public TopDocs topDocs() {
+        ScoreDoc[] hits = new ScoreDoc[queue.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = queue.pop();
+        }
+        return new TopDocs(totalHits, hits,
+                   totalHits == 0 || !needsScores ? Float.NaN : maxScore);
+    }
+
+    /* Compare segment document 'doc' to a hit with the given values and
+     * global document number. Negative if doc sorts first */
+    private int compare(int doc, float score, Object[] values, int otherDoc) {
+        for (int i = 0; i < sortFields.length; i++) {
+            int cmp;
+            switch (sortFields[i].getType()) {
+                case SortField.SCORE:
+                    // Best scores first
+                    cmp = Float.compare((Float)values[i], score);
+                    break;
+                case SortField.LONG:
+                    long value = longValues[i][doc];
+                    long other = (Long)values[i];
+                    cmp = value < other ? -1 : (value == other ? 0 : 1);
+                    break;
+                default:
+                    FieldCache.StringIndex index = stringValues[i];
+                    cmp = compareStrings(index.lookup[index.order[doc]],
+                                         (String)values[i]);
+            }
+
+            if (cmp != 0) {
+                return sortFields[i].getReverse() ? -cmp : cmp;
+            }
+        }
+
+        doc += docBase;
+        return doc < otherDoc ? -1 : (doc == otherDoc ? 0 : 1);
+    }
+
+    private FieldHit newHit(int doc, float score) {
+        Object[] values = new Object[sortFields.length];
+        for (int i = 0; i < sortFields.length; i++) {
+            switch (sortFields[i].getType()) {
+                case SortField.SCORE:
+                    values[i] = score;
+                    break;
+                case SortField.LONG:
+                    values[i] = longValues[i][doc];
+                    break;
+                default:
+                    FieldCache.StringIndex index = stringValues[i];
+                    values[i] = index.lookup[index.order[doc]];
+            }
+        }
+        return new FieldHit(docBase + doc, score, values);
+    }
+
+    private void checkCursor(Cursor cursor) {
+        if (cursor.values.length != sortFields.length) {
+            throw new MessageFormatException(
+                                  "Cursor does not match the sort order");
+        }
+
+        for (int i = 0; i < sortFields.length; i++) {
+            Object value = cursor.values[i];
+            boolean valid;
+            switch (sortFields[i].getType()) {
+                case SortField.SCORE:
+                    valid = value instanceof Float;
+                    break;
+                case SortField.LONG:
+                    valid = value instanceof Long;
+                    break;
+                default:
+                    valid = value == null || value instanceof String;
+            }
+            if (!valid) {
+                throw new MessageFormatException(
+                                  "Cursor does not match the sort order");
+            }
+        }
+    }
+
+    /* Missing values sort first */
+    private static int compareStrings(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : -1;
+        } else if (b == null) {
+            return 1;
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * A hit carrying the values it was sorted by
+     */
+    public static class FieldHit extends ScoreDoc {
+        private static final long serialVersionUID = 1L;
+
+        public final Object[] values;
+
+        public FieldHit(int doc, float score, Object[] values) {
+            super(doc, score);
+            this.values = values;
+        }
+    }
+
+    /* Keeps the last hit in sort order on top */
+    private class HitQueue extends PriorityQueue<FieldHit> {
+        public HitQueue(int size) {
+            initialize(size);
+        }
+
+        @Override
+        protected boolean lessThan(FieldHit a, FieldHit b) {
+            for (int i = 0; i < sortFields.length; i++) {
+                int cmp;
+                switch (sortFields[i].getType()) {
+                    case SortField.SCORE:
+                        cmp = Float.compare((Float)b.values[i],
+                                            (Float)a.values[i]);
+                        break;
+                    case SortField.LONG:
+                        cmp = ((Long)a.values[i]).compareTo(
+                                                        (Long)b.values[i]);
+                        break;
+                    default:
+                        cmp = compareStrings((String)a.values[i],
+                                             (String)b.values[i]);
+                }
+
+                if (cmp != 0) {
+                    if (sortFields[i].getReverse()) {
+                        cmp = -cmp;
+                    }
+                    return cmp > 0;
+                }
+            }
+            return a.doc > b.doc;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package higgla.server;
+
+import juglr.Actor;
+import juglr.Address;
+import juglr.AddressAlreadyOwnedException;
+import juglr.Message;
+import juglr.MessageBus;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a single shared {@link IndexSearcher} for a base. All actors reading
+ * from a base obtain their searcher by calling {@link #acquire()} and must
+ * hand it back again with {@link #release(IndexSearcher)} when they are done.
+ * <p/>
+ * The underlying {@link IndexReader} is reference counted. After each commit
+ * the {@link WriterActor} for the base sends a {@link ReaderUpdate} carrying
+ * its own freshly reopened reader to the named address
+ * {@code "/_searcher_<baseName>"}. The manager atomically swaps in a searcher
+ * on that reader, so the query side normally never has to reopen the
+ * index itself. Should an update be missed, {@link #acquire()} reopens the
+ * reader if it is no longer current. To keep the index directory off the
+ * query path this is checked at most once every {@link #CHECK_INTERVAL}
+ * milliseconds without an update.
+ * The old reader is closed when the last in-flight request holding it calls
+ * {@code release()}.
+ * <p/>
+ * There is exactly one SearcherManager per base name, look it up with
+ * {@link #forBase(String)}.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 2, 2010
+ */
+public class SearcherManager {
+
+    /**
+     * Minimum time in milliseconds between checks for commits the manager
+     * missed the {@link ReaderUpdate} of. Set it with the system property
+     * {@code higgla.searcher.checkinterval}
+     */
+    public static final long CHECK_INTERVAL = Math.max(0, Long.getLong(
+                                   "higgla.searcher.checkinterval", 5000));
+
+    private static final ConcurrentMap<String,SearcherManager> managers =
+                                 new ConcurrentHashMap<String,SearcherManager>();
+
+    private final String baseName;
+    private IndexSearcher current; // guarded by 'this'
+    private long lastCheck;        // guarded by 'this'
+
+    private SearcherManager(String baseName) {
+        this.baseName = baseName;
+    }
+
+    /**
+     * Get the SearcherManager responsible for {@code baseName}, creating it
+     * if it does not exist yet. The index is not opened before the first call
+     * to {@link #acquire()} or the first {@link ReaderUpdate} from the writer.
+     * @param baseName the name of the base
+     * @return the unique SearcherManager for the base
+     */
+    public static SearcherManager forBase(String baseName) {
+        SearcherManager manager = managers.get(baseName);
+        if (manager == null) {
+            manager = new SearcherManager(baseName);
+            SearcherManager race = managers.putIfAbsent(baseName, manager);
+            if (race != null) {
+                manager = race;
+            } else {
+                // We won the race, start listening for new readers. The
+                // name is allocated before returning, so the WriterActor
+                // can not commit without finding the listener once the
+                // manager is in use
+                Actor listener = new UpdateListener(manager);
+                try {
+                    MessageBus.getDefault().allocateNamedAddress(
+                                       listener, baseAddress(baseName));
+                } catch (AddressAlreadyOwnedException e) {
+                    // Should not happen since only one manager per base
+                    // wins the race above
+                    System.err.println(String.format(
+                            "Searcher listener for '%s' already registered",
+                            baseName));
+                }
+                MessageBus.getDefault().start(listener.getAddress());
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Obtain the current searcher for the base. The returned searcher
+     * <i>must</i> be passed to {@link #release(IndexSearcher)} when the caller
+     * is done with it, typically in a {@code finally} clause.
+     * <p/>
+     * If there has been no {@link ReaderUpdate} for
+     * {@link #CHECK_INTERVAL} milliseconds and the current reader is not on
+     * the latest commit it is reopened, in case an update was lost.
+     * @return the current searcher with its reader reference incremented
+     * @throws IOException if the index can not be opened
+     */
+    public synchronized IndexSearcher acquire() throws IOException {
+        if (current == null) {
+            IndexReader reader = IndexReader.open(
+                                     FSDirectory.open(new File(baseName)), true);
+            current = new IndexSearcher(reader);
+            lastCheck = System.currentTimeMillis();
+        } else if (System.currentTimeMillis() - lastCheck >= CHECK_INTERVAL) {
+            lastCheck = System.currentTimeMillis();
+            if (!current.getIndexReader().isCurrent()) {
+                IndexReader reader = current.getIndexReader().reopen();
+                if (reader != current.getIndexReader()) {
+                    IndexSearcher oldSearcher = current;
+                    current = new IndexSearcher(reader);
+                    release(oldSearcher);
+                }
+            }
+        }
+
+        current.getIndexReader().incRef();
+        return current;
+    }
+
+    /**
+     * Release a searcher obtained from {@link #acquire()}. It is allowed to
+     * pass {@code null} in which case this method does nothing.
+     * @param searcher the searcher to release
+     * @throws IOException if there is an error closing the reader when the
+     *                     last reference to it is released
+     */
+    public void release(IndexSearcher searcher) throws IOException {
+        if (searcher != null) {
+            searcher.getIndexReader().decRef();
+        }
+    }
+
+    /**
+     * Swap in {@code reader} as the reader for new requests. The caller
+     * hands over one reference to {@code reader} which this manager will
+     * release when the reader is superseded. If {@code reader} is not newer
+     * than the current reader it is released right away.
+     * @param reader a read-only reader on a committed version of the base
+     * @throws IOException if there is an error closing a superseded reader
+     */
+    public void publish(IndexReader reader) throws IOException {
+        IndexSearcher oldSearcher;
+        boolean stale;
+        synchronized (this) {
+            oldSearcher = current;
+            stale = oldSearcher != null &&
+                    oldSearcher.getIndexReader().getVersion()
+                                                       >= reader.getVersion();
+            if (!stale) {
+                current = new IndexSearcher(reader);
+            }
+            // The writer keeps us up to date, no need to check the index
+            lastCheck = System.currentTimeMillis();
+        }
+
+        if (stale) {
+            // Late delivery, we already have a reader at least this new
+            reader.decRef();
+        } else {
+            // Drop the reference held by this manager. The reader will be
+            // closed when the last request using it calls release()
+            release(oldSearcher);
+        }
+    }
+
+    public String getBaseName() {
+        return baseName;
+    }
+
+    public static String baseAddress(CharSequence baseName) {
+        return "/_searcher_" + baseName;
+    }
+
+    /**
+     * Notification sent by the {@link WriterActor} to
+     * {@link SearcherManager#baseAddress} when it has committed. The sender
+     * must increment the reference count of {@code reader} before sending,
+     * the receiving manager takes over that reference.
+     */
+    public static class ReaderUpdate extends Message {
+        public final IndexReader reader;
+
+        public ReaderUpdate(IndexReader reader) {
+            this.reader = reader;
+        }
+    }
+
+    /* Owns the named address of the manager on the bus and hands
+     * incoming readers over to it */
+    private static class UpdateListener extends Actor {
+        private SearcherManager manager;
+
+        public UpdateListener(SearcherManager manager) {
+            this.manager = manager;
+        }
+
+        @Override
+        public void react(Message message) {
+            if (!(message instanceof ReaderUpdate)) {
+                System.err.println(String.format(
+                        "Searcher listener for '%s' expected ReaderUpdate. " +
+                        "Got %s", manager.baseName,
+                        message.getClass().getName()));
+                return;
+            }
+
+            try {
+                manager.publish(((ReaderUpdate)message).reader);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(String.format(
+                        "I/O error publishing new reader for base '%s'",
+                        manager.baseName));
+            }
+
+            // Wake up clients waiting for changes now that they are visible
+            Address changes = getBus().lookup(
+                                   ChangesActor.baseAddress(manager.baseName));
+            if (changes != null) {
+                send(ChangesActor.COMMITTED, changes);
+            }
+        }
+    }
+}
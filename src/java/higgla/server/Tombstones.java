@@ -0,0 +1,160 @@
+package higgla.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the ids and revisions of deleted boxes so the
+ * {@link ChangesActor} can report deletes. Deleted boxes are removed from
+ * the Lucene index, so the tombstones are kept in the file
+ * higgla.tombstones of the base instead. The file is a sequence of
+ * records, each a long revision followed by the id in modified UTF-8 as
+ * written by {@link DataOutputStream#writeUTF}. A partial record at the
+ * end of the file, left by a crash, is cut off when the file is read.
+ * <p/>
+ * The {@link WriterActor} appends the deletes of a group right before
+ * committing it. If the commit fails the tombstones stay in the file even
+ * though the boxes were not deleted. Readers must therefore only trust a
+ * tombstone if the box is gone, or has been written again with a newer
+ * revision.
+ * <p/>
+ * All tombstones are kept in memory, they are read from the file on first
+ * use. There is exactly one Tombstones instance per base name, look it up
+ * with {@link #forBase(String)}.
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 15, 2010
+ */
+public class Tombstones {
+
+    private static final ConcurrentMap<String,Tombstones> tombstones =
+                                 new ConcurrentHashMap<String,Tombstones>();
+
+    private final File file;
+    private TreeMap<Long,String> deletes; // guarded by 'this'
+
+    private Tombstones(String baseName) {
+        file = new File(baseName, "higgla.tombstones");
+    }
+
+    /**
+     * Get the Tombstones for {@code baseName}, creating it if it does not
+     * exist yet
+     * @param baseName the name of the base
+     * @return the unique Tombstones for the base
+     */
+    public static Tombstones forBase(String baseName) {
+        Tombstones t = tombstones.get(baseName);
+        if (t == null) {
+            t = new Tombstones(baseName);
+            Tombstones race = tombstones.putIfAbsent(baseName, t);
+            if (race != null) {
+                t = race;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Append tombstones to the file and make them visible to
+     * {@link #since}
+     * @param deleted a map of the revisions of the deletes to the ids of
+     *                the deleted boxes
+     * @throws IOException if the tombstones can not be written
+     */
+    public synchronized void add(SortedMap<Long,String> deleted)
+                                                           throws IOException {
+        if (deleted.isEmpty()) {
+            return;
+        }
+        load();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                          new FileOutputStream(file, true)));
+        try {
+            for (Map.Entry<Long,String> entry : deleted.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        deletes.putAll(deleted);
+    }
+
+    /**
+     * Get the first tombstones with a revision greater than {@code rev}
+     * @param rev only return tombstones newer than this revision
+     * @param max the maximum number of tombstones to return
+     * @return a new map of revisions to ids, in revision order
+     * @throws IOException if the tombstones can not be read
+     */
+    public synchronized SortedMap<Long,String> since(long rev, int max)
+                                                           throws IOException {
+        load();
+
+        SortedMap<Long,String> result = new TreeMap<Long,String>();
+        Iterator<Map.Entry<Long,String>> iter =
+                                 deletes.tailMap(rev + 1).entrySet().iterator();
+        while (iter.hasNext() && result.size() < max) {
+            Map.Entry<Long,String> entry = iter.next();
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private void load() throws IOException {
+        if (deletes != null) {
+            return;
+        }
+
+        TreeMap<Long,String> loaded = new TreeMap<Long,String>();
+        if (!file.exists()) {
+            deletes = loaded;
+            return;
+        }
+
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        ByteArrayInputStream buf = new ByteArrayInputStream(data);
+        in = new DataInputStream(buf);
+        int end = 0;
+        try {
+            while (buf.available() > 0) {
+                long rev = in.readLong();
+                loaded.put(rev, in.readUTF());
+                end = data.length - buf.available();
+            }
+        } catch (EOFException e) {
+            // Cut off the partial record so that new records can be
+            // appended after the last complete one
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try {
+                f.setLength(end);
+            } finally {
+                f.close();
+            }
+        }
+        deletes = loaded;
+    }
+}
@@ -1,10 +1,12 @@
 package higgla.server;
 
 import juglr.*;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
@@ -15,12 +17,9 @@ import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -36,42 +35,101 @@ import java.util.concurrent.atomic.AtomicLong;
  * WriterGatewayActor looks up the relevant WriterActor on each incoming
  * {@link Transaction} and creates the relevant WriterActor if it is not found,
  * the WriterActor will be "lazily" recreated in case of a crash.
+ * <p/>
+ * <i>Group commit:</i> The revisions of a transaction are checked for
+ * conflicts before anything is written to the index, so a conflicting
+ * transaction never affects other transactions. Conflict free transactions
+ * are written to the index writer, but committed together in groups of up to
+ * {@link #MAX_GROUP_SIZE} transactions with one Lucene commit and one
+ * write of the higgla.meta file. A group is committed when it is full, or
+ * when there are no more queued transactions and it has been open for
+ * {@link #MAX_GROUP_WAIT} milliseconds. Each transaction gets its own reply
+ * once its group has been committed.
  *
  * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
  * @since Feb 3, 2010
  */
 public class WriterActor extends Actor {
 
-    /** The higgla.meta file must always be exactly 2048 bytes in order
-     * to guard against disk-full scenarios.
-     * We also reserve a byte array of that size in memory to provide
-     * durability against OOM. */
-    private static final int META_SIZE = 2048;
-    private static final int HIGGLA_META_VERSION = 1;
-    private ByteBuffer metaBuffer;
-    private File metaFile;
+    /** Maximum number of transactions applied in one group commit. Set with
+     * the system property {@code higgla.writer.groupsize} */
+    static final int MAX_GROUP_SIZE = Math.max(1, Integer.getInteger(
+                                              "higgla.writer.groupsize", 64));
+
+    /** Maximum number of milliseconds a group of transactions may be held
+     * open waiting for more transactions to arrive. Set with the system
+     * property {@code higgla.writer.groupwait}. The default is 0 which
+     * commits as soon as there are no more queued transactions */
+    static final long MAX_GROUP_WAIT = Math.max(0, Long.getLong(
+                                              "higgla.writer.groupwait", 0));
+
+    /** Number of delegates checking and writing the revisions of a
+     * transaction in parallel. Set with the system property
+     * {@code higgla.writer.delegates}. Defaults to the number of available
+     * processors */
+    static final int NUM_DELEGATES = Math.max(1, Integer.getInteger(
+                                "higgla.writer.delegates",
+                                Runtime.getRuntime().availableProcessors()));
+
+    /** Maximum number of committed id to revision pairs kept in memory to
+     * answer conflict checks without touching the index. Set with the system
+     * property {@code higgla.writer.revcache} */
+    static final int REVISION_CACHE_SIZE = Math.max(0, Integer.getInteger(
+                                          "higgla.writer.revcache", 100000));
+
+    /** Only load the revision when looking up a stored box */
+    private static final FieldSelector revisionSelector =
+                                  new MapFieldSelector(new String[]{"_rev"});
+
+    /**
+     * Key of the commit user data holding the last revision handed out
+     * when the commit was made
+     */
+    static final String LAST_REVISION = "higgla.lastRevision";
+
+    /** Used to wake up writers holding a group open */
+    private static final Timer flushTimer = new Timer("higgla-flush", true);
+    private static final Message FLUSH = new Message();
+    private static final Message SHUTDOWN = new Message();
 
     private Queue<Transaction> todo;
     private int actualTransactionLatch;
     private Transaction actualTransaction;
     private List<Box> actualTransactionErrors;
     private Box actualTransactionRevisions;
+    private List<Check> actualTransactionChecks;
+    private boolean actualTransactionWriting;
+    private IOException actualTransactionWriteError;
+    private List<Applied> group;
+    private SortedMap<Long,String> groupDeletes;
+    private long groupStart;
+    private boolean flushScheduled;
+    private Map<String,Long> pendingRevisions;
+    private Map<String,Long> committedRevisions;
     private IndexWriter indexWriter;
-    private IndexReader indexReader;
-    private Address writer;
+    private volatile IndexReader indexReader;
+    private Analyzer analyzer;
+    private Address[] writers;
     private Address baseAddress;
     private String baseName;
     private Directory baseDir;
     private boolean started;
     private AtomicLong revisionCounter;
+    private BaseMeta meta;
+    private Tombstones tombstones;
 
     public WriterActor(String baseName) {
         this.baseName = baseName;
         todo = new PriorityQueue<Transaction>();
+        group = new ArrayList<Applied>();
+        groupDeletes = new TreeMap<Long,String>();
+        pendingRevisions = new ConcurrentHashMap<String,Long>();
+        committedRevisions = Collections.synchronizedMap(
+                                  new RevisionCache(REVISION_CACHE_SIZE));
 
         // Pre-allocate resources for the higgla.meta file
-        metaBuffer = ByteBuffer.allocate(META_SIZE);
-        metaFile = new File(baseName, "higgla.meta");
+        meta = new BaseMeta(new File(baseName));
+        tombstones = Tombstones.forBase(baseName);
     }
 
     @Override
@@ -100,7 +158,7 @@ public class WriterActor extends Actor {
         // an IndexWriter for the base
 
         try {
-            revisionCounter = new AtomicLong(readLastRevision());
+            revisionCounter = new AtomicLong(meta.readLastRevision());
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("I/O Error detecting last revision number");
@@ -108,7 +166,18 @@ public class WriterActor extends Actor {
             return;
         }
 
-        renewWriter();  // requires revisionCounter to be set
+        analyzer = new StandardAnalyzer(
+                               Version.LUCENE_CURRENT, Collections.EMPTY_SET);
+        renewWriter();
+
+        // The delegates live as long as this actor and always check
+        // against the current indexReader and pendingRevisions
+        Address[] delegates = new Address[NUM_DELEGATES];
+        for (int i = 0; i < delegates.length; i++) {
+            delegates[i] = new WriterDelegate().getAddress();
+        }
+        writers = delegates;
+        scheduleNextTransaction();
     }
 
     /**
@@ -122,6 +191,10 @@ public class WriterActor extends Actor {
             handleTransaction((Transaction)message);
         } else if (message instanceof Check) {
             handleCheck((Check)message);
+        } else if (message instanceof Written) {
+            handleWritten((Written)message);
+        } else if (message == FLUSH) {
+            handleFlush();
         } else {
             throw new MessageFormatException(
                     "Expected Transaction or Check. Got "
@@ -135,75 +208,195 @@ public class WriterActor extends Actor {
         actualTransactionLatch--;
 
         actualTransactionRevisions.put(check.boxId, check.boxRevision);
+        actualTransactionChecks.add(check);
 
         if (check.error != null) {
             actualTransactionErrors.add(check.error);
         }
 
         if (actualTransactionLatch == 0) {
-            // Reset and prepare for next transaction
-            Transaction closingTransaction = actualTransaction;
-            List<Box> closingTransactionErrors = actualTransactionErrors;
-            Box closingTransactionRevisions = actualTransactionRevisions;
-            actualTransaction = null;
-            actualTransactionErrors = null;
-            actualTransactionRevisions = null;
-
-            if (closingTransactionErrors.size() != 0) {
-                try {
-                    indexWriter.rollback();
-                    renewWriter();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.err.println(String.format(
-                         "I/O Error while rolling back transaction '%s': %s",
-                         closingTransaction.getId(), e.getMessage()));
-                } finally {
-                    Box reply = formatMsg(
-                            Long.toString(closingTransaction.getId()), "error");
-                    reply.put("transaction", closingTransaction.getId());
-                    reply.put("error", closingTransactionErrors);
-                    reply.put("revisions", closingTransactionRevisions);
-                    send(reply, closingTransaction.getReplyTo());
-                    
-                    renewWriter();
-                }
+            if (actualTransactionErrors.size() != 0) {
+                // Nothing has been written to the index for this transaction
+                // so there is nothing to roll back
+                Box reply = formatMsg(
+                           Long.toString(actualTransaction.getId()), "error");
+                reply.put("transaction", actualTransaction.getId());
+                reply.put("error", actualTransactionErrors);
+                reply.put("revisions", actualTransactionRevisions);
+                send(reply, actualTransaction.getReplyTo());
+
+                clearTransaction();
+                scheduleNextTransaction();
                 return;
             }
 
-            try {
-                // Commit and notify
-                indexWriter.commit();
-                commitMeta();
-                Box reply = formatMsg(
-                                Long.toString(closingTransaction.getId()), "ok");
-                reply.put("transaction", closingTransaction.getId());
-                reply.put("revisions", closingTransactionRevisions);
-                send(reply, closingTransaction.getReplyTo());
-
-                // Reply has been send; now reload the reader to make sure
-                // it sees up to date revisions and ids
-                renewReader();
+            // All revisions checked out. Have the delegates write their
+            // share of the documents to the index writer
+            List<List<Check>> partitions =
+                                    new ArrayList<List<Check>>(writers.length);
+            for (int i = 0; i < writers.length; i++) {
+                partitions.add(new ArrayList<Check>());
+            }
+            for (Check c : actualTransactionChecks) {
+                partitions.get(delegateIndex(c.boxId)).add(c);
+            }
 
-                scheduleNextTransaction();
-            } catch (IOException e) {
-                Box reply = formatMsg(
-                            "error", "Failed to commit transaction '%s': %s",
-                            closingTransaction.getId(), e.getMessage());
-                    reply.put(Long.toString(closingTransaction.getId()), "error");
-                    reply.put("transaction", closingTransaction.getId());
-                try {
-                    indexWriter.rollback();
-                    scheduleNextTransaction();
-                } catch (IOException e1) {
-                    e.printStackTrace();
-                    System.err.println(
-                         "Failed to roll back transaction after failed commit");
-                    shutdown();
-                } finally {
-                    send(reply, closingTransaction.getReplyTo());
+            actualTransactionWriting = true;
+            for (int i = 0; i < writers.length; i++) {
+                if (partitions.get(i).isEmpty()) {
+                    continue;
                 }
+                Write write = new Write();
+                write.transactionId = actualTransaction.getId();
+                write.checks = partitions.get(i);
+                actualTransactionLatch++;
+                send(write, writers[i]);
+            }
+        }
+    }
+
+    private void handleWritten(Written written) {
+        assert actualTransaction != null;
+        assert actualTransactionWriting;
+        assert written.transactionId == actualTransaction.getId();
+        actualTransactionLatch--;
+
+        if (written.error != null && actualTransactionWriteError == null) {
+            actualTransactionWriteError = written.error;
+        }
+
+        if (actualTransactionLatch > 0) {
+            return;
+        }
+
+        Transaction closingTransaction = actualTransaction;
+        Box closingTransactionRevisions = actualTransactionRevisions;
+        List<Check> closingTransactionChecks = actualTransactionChecks;
+        IOException writeError = actualTransactionWriteError;
+        clearTransaction();
+
+        if (writeError != null) {
+            rollbackGroup(String.format(
+                    "Failed to apply transaction '%s': %s",
+                    closingTransaction.getId(), writeError.getMessage()),
+                    closingTransaction);
+            scheduleNextTransaction();
+            return;
+        }
+
+        if (group.isEmpty()) {
+            groupStart = System.currentTimeMillis();
+        }
+        group.add(new Applied(closingTransaction, closingTransactionRevisions));
+        for (Check c : closingTransactionChecks) {
+            if (c.type == Transaction.Revision.DELETE && c.exists) {
+                groupDeletes.put(c.boxRevision, c.boxId);
+            }
+        }
+        scheduleNextTransaction();
+    }
+
+    private void clearTransaction() {
+        actualTransaction = null;
+        actualTransactionErrors = null;
+        actualTransactionRevisions = null;
+        actualTransactionChecks = null;
+        actualTransactionWriting = false;
+        actualTransactionWriteError = null;
+    }
+
+    /* All revisions of a given id always go to the same delegate */
+    private int delegateIndex(String id) {
+        return (id.hashCode() & Integer.MAX_VALUE) % writers.length;
+    }
+
+    /* Commit all transactions in the current group with one Lucene commit
+     * and one meta write, then send each transaction its own reply. The
+     * tombstones of the group are written first, so a delete is never
+     * committed without its tombstone */
+    private void commitGroup() {
+        try {
+            tombstones.add(groupDeletes);
+            groupDeletes.clear();
+            indexWriter.commit(Collections.singletonMap(
+                     LAST_REVISION, Long.toString(revisionCounter.get())));
+            meta.write(revisionCounter.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+            rollbackGroup(String.format(
+                    "Failed to commit transaction: %s", e.getMessage()), null);
+            return;
+        }
+
+        // The pending revisions are now durable. No delegates are running
+        // so nobody can be racing us with an older revision from the reader
+        committedRevisions.putAll(pendingRevisions);
+
+        for (Applied applied : group) {
+            Box reply = formatMsg(
+                             Long.toString(applied.transaction.getId()), "ok");
+            reply.put("transaction", applied.transaction.getId());
+            reply.put("revisions", applied.revisions);
+            send(reply, applied.transaction.getReplyTo());
+        }
+        group.clear();
+
+        try {
+            // Replies have been sent; now reload the reader to make sure
+            // it sees up to date revisions and ids
+            renewReader();
+            pendingRevisions.clear();
+            publishReader();
+        } catch (IOException e) {
+            // Print error and shutdown. Next time a transaction is send our
+            // way the WriterGatewayActor will re-create a WriterActor
+            e.printStackTrace();
+            System.err.println("I/O error reopening index reader");
+            shutdown();
+        }
+    }
+
+    /* Throw away everything written since the last commit and send an error
+     * reply to all transactions in the group, and to 'failed' if that is
+     * not null */
+    private void rollbackGroup(String error, Transaction failed) {
+        List<Transaction> dropped = new ArrayList<Transaction>();
+        for (Applied applied : group) {
+            dropped.add(applied.transaction);
+        }
+        if (failed != null) {
+            dropped.add(failed);
+        }
+        group.clear();
+        groupDeletes.clear();
+        pendingRevisions.clear();
+
+        try {
+            indexWriter.rollback();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(String.format(
+                    "I/O Error while rolling back base '%s': %s",
+                    baseName, e.getMessage()));
+        } finally {
+            for (Transaction t : dropped) {
+                Box reply = formatMsg("error", error);
+                reply.put(Long.toString(t.getId()), "error");
+                reply.put("transaction", t.getId());
+                send(reply, t.getReplyTo());
             }
+
+            // The IndexWriter is closed by rollback()
+            indexWriter = null;
+            renewWriter();
+        }
+    }
+
+    private void handleFlush() {
+        flushScheduled = false;
+        if (!transactionOngoing() && !group.isEmpty()) {
+            commitGroup();
+            scheduleNextTransaction();
         }
     }
 
@@ -222,12 +415,26 @@ public class WriterActor extends Actor {
         }
     }
 
-    private void renewWriter() {
-        assert revisionCounter != null;
-
-        if (writer != null) {
-            send(WriterDelegate.SHUTDOWN, writer);
+    /* Hand our freshly reopened reader over to the query side so it can
+     * see the committed changes without reopening the index itself. If
+     * nobody has read from the base yet there is no SearcherManager
+     * listening and it will simply open the index on first use */
+    private void publishReader() {
+        Address searchers = getBus().lookup(
+                                     SearcherManager.baseAddress(baseName));
+        if (searchers == null || indexReader == null) {
+            return;
         }
+
+        // The SearcherManager takes over this reference
+        indexReader.incRef();
+        send(new SearcherManager.ReaderUpdate(indexReader), searchers);
+    }
+
+    /* Open a new IndexWriter, closing the old one if it is still open, and
+     * make sure we have a reader. Only needed on start up and after a
+     * rollback, since rollback() closes the writer */
+    private void renewWriter() {
         if (indexWriter != null) {
             try {
                 indexWriter.close();
@@ -238,10 +445,7 @@ public class WriterActor extends Actor {
             }
         }
         try {
-            indexWriter = new IndexWriter(baseDir,
-                                          new StandardAnalyzer(
-                                                  Version.LUCENE_CURRENT,
-                                                  Collections.EMPTY_SET),
+            indexWriter = new IndexWriter(baseDir, analyzer,
                                           IndexWriter.MaxFieldLength.LIMITED);
         } catch (IOException e) {
             // Failed to open the index. Retract this actor from the bus
@@ -260,76 +464,23 @@ public class WriterActor extends Actor {
             System.err.println(String.format(
                        "I/O error reading base data for '%s'", baseName));
         }
-
-        writer = new WriterDelegate(
-                     indexWriter, indexReader, revisionCounter).getAddress();
-        scheduleNextTransaction();
-    }
-
-    /**
-     * Write index metadata to the file higgla.meta - most notably our
-     * revision number.
-     * <p/>
-     * The higgla.meta file keeps it's file format version in an integer
-     * in the first 4 bytes. The higgla.meta format version 1 simply
-     * stores the last known revision number as a long in the next 8 bytes
-     * @throws IOException bad bad bad
-     */
-    private void commitMeta() throws IOException {
-        metaBuffer.clear();
-        metaBuffer.putInt(HIGGLA_META_VERSION);
-        metaBuffer.putLong(revisionCounter.get());
-
-        // Pad the file to META_SIZE
-        while (metaBuffer.remaining() > 0) {
-            metaBuffer.putInt(0);
-        }
-        metaBuffer.flip();
-
-        FileChannel f = new FileOutputStream(metaFile).getChannel();
-        try {
-            f.write(metaBuffer);
-        } finally {
-            f.close();
-        }
-    }
-
-    /**
-     * Read the last known revision from the higgla.meta file or return 0
-     * if the file doesn't exist
-     * @return
-     * @throws IOException
-     */
-    private long readLastRevision() throws IOException {
-        if (!metaFile.exists()) {
-            return 0;
-        }
-
-        metaBuffer.clear();
-        FileChannel f = new FileInputStream(metaFile).getChannel();
-        f.read(metaBuffer);
-        metaBuffer.flip();
-
-        int metaFileVersion = metaBuffer.getInt();
-        if (metaFileVersion != HIGGLA_META_VERSION) {
-            throw new IOException(
-                    "Unsupported version number found in "+metaFile);
-        }
-        long lastRev = metaBuffer.getLong();
-        return lastRev;
     }
 
     private void handleTransaction(Transaction transaction) {
         todo.add(transaction);
 
-        // If writer==null start() has not completed yet
-        if (!transactionOngoing() && writer != null) {
+        // If writers==null start() has not completed yet
+        if (!transactionOngoing() && writers != null) {
             scheduleNextTransaction();
         }
     }
 
     private void shutdown() {
-        send(WriterDelegate.SHUTDOWN, writer);
+        if (writers != null) {
+            for (Address writer : writers) {
+                send(SHUTDOWN, writer);
+            }
+        }
         getBus().freeAddress(baseAddress);
         getBus().freeAddress(getAddress());
         try {
@@ -342,40 +493,66 @@ public class WriterActor extends Actor {
         }
     }
 
+    /* Start the next queued transaction, but first commit the current
+     * group if it is full, or if there are no more transactions queued
+     * and the group has been held open for long enough */
     private void scheduleNextTransaction() {
         assert actualTransaction == null : "Previous transaction not cleared";
         assert actualTransactionLatch == 0 : "Transaction latch not cleared";
         assert actualTransactionErrors == null : "Transaction errors remain";
         assert actualTransactionRevisions == null : "Transaction revisions not reset";
 
+        while (todo.peek() != null && todo.peek().size() == 0) {
+            // Nothing to check, but reply in commit order like the others
+            if (group.isEmpty()) {
+                groupStart = System.currentTimeMillis();
+            }
+            group.add(new Applied(todo.poll(), Box.newMap()));
+        }
+
+        if (!group.isEmpty()) {
+            if (group.size() >= MAX_GROUP_SIZE) {
+                commitGroup();
+            } else if (todo.isEmpty()) {
+                long age = System.currentTimeMillis() - groupStart;
+                if (age >= MAX_GROUP_WAIT) {
+                    commitGroup();
+                } else {
+                    scheduleFlush(MAX_GROUP_WAIT - age);
+                    return;
+                }
+            }
+        }
+
         Transaction t = todo.poll();
         if (t != null) {
             actualTransactionLatch = t.size();
             actualTransaction = t;
             actualTransactionRevisions = Box.newMap();
             actualTransactionErrors = new LinkedList<Box>();
-            try {
-                renewReader();
-            } catch (IOException e) {
-                // Print error, put transaction back in queue, and shutdown.
-                // Next time a transaction is send our way the WriterGatewayActor
-                // will re-create a WriterActor instance
-                e.printStackTrace();
-                System.err.println("I/O error reopening index reader");
-                shutdown();
-            }
-
-            // We create a new WriterDelegate for each transaction
-            send(WriterDelegate.SHUTDOWN, writer);
-            writer = new WriterDelegate(
-                        indexWriter, indexReader, revisionCounter).getAddress();
+            actualTransactionChecks = new ArrayList<Check>(t.size());
 
             for (Transaction.Revision rev : actualTransaction) {
-                send(rev, writer);
+                send(rev, writers[delegateIndex(rev.id)]);
             }
         }
     }
 
+    private void scheduleFlush(long delay) {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+
+        final Address self = getAddress();
+        flushTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                getBus().send(FLUSH, self);
+            }
+        }, delay);
+    }
+
     private boolean transactionOngoing() {
         return actualTransaction != null;
     }
@@ -393,22 +570,62 @@ public class WriterActor extends Actor {
         public Box error;           // If set this Check indicates an error
         public long boxRevision;    // New rev. number
         public String boxId;        // Id of handled box
+        public int type;            // Transaction.Revision type
+        public boolean exists;      // True if the box is already stored
+        public Document doc;        // Document to store, null for deletes
+    }
+
+    /* Asks a delegate to write the documents of its share of a conflict
+     * free transaction */
+    private static class Write extends Message {
+        public long transactionId;
+        public List<Check> checks;
+    }
+
+    /* Reply to a Write */
+    private static class Written extends Message {
+        public long transactionId;
+        public IOException error;   // If set the write failed
+    }
+
+    /* Least recently used id to revision pairs known to be committed */
+    private static class RevisionCache extends LinkedHashMap<String,Long> {
+        private static final long serialVersionUID = 1L;
+
+        private int maxSize;
+
+        public RevisionCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /* A transaction that has been written to the index writer,
+     * but not yet committed */
+    private static class Applied {
+        public Transaction transaction;
+        public Box revisions;
+
+        public Applied(Transaction transaction, Box revisions) {
+            this.transaction = transaction;
+            this.revisions = revisions;
+        }
     }
 
-    private static class WriterDelegate extends Actor {
-        public static final Message SHUTDOWN = new Message();
-        private IndexWriter indexWriter;
-        private IndexReader indexReader;
-        private BoxReader boxReader;
-        private AtomicLong revisionCounter;
+    /* Checks revisions and prepares Documents for the enclosing WriterActor.
+     * The reader and pending revisions of the WriterActor are only swapped
+     * between transactions, so they are safe to read while a transaction
+     * is being checked */
+    private class WriterDelegate extends Actor {
+        private DocumentBuilder documentBuilder;
 
-        public WriterDelegate(IndexWriter indexWriter,
-                              IndexReader indexReader,
-                              AtomicLong revisionCounter) {
-            this.indexWriter = indexWriter;
-            this.indexReader = indexReader;
-            this.revisionCounter = revisionCounter;
-            boxReader = new JSonBoxReader(new Box(true));
+        public WriterDelegate() {
+            documentBuilder = new DocumentBuilder();
         }
 
         @Override
@@ -416,6 +633,9 @@ public class WriterActor extends Actor {
             if (message == SHUTDOWN) {
                 getBus().freeAddress(getAddress());
                 return;
+            } else if (message instanceof Write) {
+                handleWrite((Write)message);
+                return;
             }
 
             assert message instanceof Transaction.Revision;
@@ -424,27 +644,33 @@ public class WriterActor extends Actor {
             check.transactionId = rev.transactionId;
             check.boxId = rev.id;
             check.boxRevision = rev.rev;
+            check.type = rev.type;
             Term idTerm = new Term("_id", rev.id);
             try {
-                long currentRev = findRevisionNumber(idTerm);
+                // Boxes written earlier in the current group are not
+                // visible to the reader yet
+                Long knownRev = pendingRevisions.get(rev.id);
+                if (knownRev == null) {
+                    knownRev = committedRevisions.get(rev.id);
+                }
+                long currentRev;
+                if (knownRev != null) {
+                    currentRev = knownRev;
+                } else {
+                    currentRev = findRevisionNumber(idTerm);
+                    committedRevisions.put(rev.id, currentRev);
+                }
 
-                // If revision is specified correctly, then update it,
-                // otherwise send back an error
+                // If revision is specified correctly, then prepare the
+                // update, otherwise send back an error. The WriterActor
+                // writes the update once the whole transaction checks out
                 if (currentRev == rev.rev) {
                     long newRev = revisionCounter.incrementAndGet();
                     rev.box.put("_rev", newRev);
-                    Document doc = boxToDocument(rev.box);
-                    if (currentRev > 0) {
-                        // Update an exisiting document
-                        if (rev.type == Transaction.Revision.UPDATE) {
-                            indexWriter.updateDocument(idTerm, doc);
-                        } else if (rev.type == Transaction.Revision.DELETE){
-                            indexWriter.deleteDocuments(idTerm);
-                        }
-                    } else {
-                        // This is a new document
-                        indexWriter.addDocument(doc);
+                    if (rev.type == Transaction.Revision.UPDATE) {
+                        check.doc = documentBuilder.build(rev.box);
                     }
+                    check.exists = currentRev > 0;
                     check.boxRevision = newRev;
                     check.error = null;
                 } else {
@@ -465,6 +691,37 @@ public class WriterActor extends Actor {
             }
         }
 
+        /* Write the prepared documents to the index writer and record
+         * their new revisions so that following transactions in the same
+         * group are checked against them */
+        private void handleWrite(Write write) {
+            Written written = new Written();
+            written.transactionId = write.transactionId;
+            try {
+                for (Check check : write.checks) {
+                    Term idTerm = new Term("_id", check.boxId);
+                    if (check.type == Transaction.Revision.DELETE) {
+                        if (check.exists) {
+                            indexWriter.deleteDocuments(idTerm);
+                        }
+                        pendingRevisions.put(check.boxId, 0L);
+                    } else {
+                        if (check.exists) {
+                            indexWriter.updateDocument(idTerm, check.doc);
+                        } else {
+                            indexWriter.addDocument(check.doc);
+                        }
+                        pendingRevisions.put(check.boxId, check.boxRevision);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                written.error = e;
+            } finally {
+                send(written, write.getReplyTo());
+            }
+        }
+
         private long findRevisionNumber(Term idTerm) throws IOException {
             TermDocs docs = indexReader.termDocs(idTerm);
             try {
@@ -473,7 +730,8 @@ public class WriterActor extends Actor {
                 }
 
                 long revno;
-                Document doc = indexReader.document(docs.doc());
+                Document doc = indexReader.document(
+                                               docs.doc(), revisionSelector);
                 Fieldable f = doc.getFieldable("_rev");
                 if (f instanceof NumericField) {
                     revno = ((NumericField)f).getNumericValue().longValue();
@@ -493,62 +751,5 @@ public class WriterActor extends Actor {
                 docs.close();
             }
         }
-
-        private Document boxToDocument(Box box) {
-            Document doc = new Document();
-            String id = box.getString("_id");
-            long rev = box.getLong("_rev");
-            String body = boxReader.reset(box).asString();
-
-            // Add stored fields
-            doc.add(new Field(
-                    "_id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
-            doc.add(new NumericField(
-                    "_rev", Field.Store.YES, true).setLongValue(rev));
-            doc.add(new Field(
-                    "_body", body, Field.Store.YES, Field.Index.NO));
-
-            // Indexed fields
-            List<Box> indexFields;
-            if (box.has("_index")) {
-                indexFields = box.getList("_index");
-            } else {
-                indexFields = Collections.EMPTY_LIST;
-            }
-            for (Box fieldBox : indexFields) {
-                String field = fieldBox.getString();
-                Box value = box.get(field);
-
-                /* Fields marked for indexing are not necessarily */
-                if (value == null) {
-                    continue;
-                }
-
-                switch (value.getType()) {
-                    case INT:
-                        doc.add(new NumericField(field).setLongValue(
-                                value.getLong()));
-                        break;
-                    case FLOAT:
-                        doc.add(
-                                new NumericField(field).setDoubleValue(
-                                        value.getFloat()));
-                        break;
-                    case BOOLEAN:
-                        doc.add(new Field(field, value.toString(),
-                                          Field.Store.NO, Field.Index.NOT_ANALYZED));
-                        break;
-                    case STRING:
-                        doc.add(new Field(field, value.getString(),
-                                          Field.Store.NO, Field.Index.ANALYZED));
-                        break;
-                    case MAP:
-                    case LIST:
-                        throw new UnsupportedOperationException("FIXME");
-                }
-            }
-            return doc;
-        }
-
     }
 }
@@ -56,21 +56,9 @@ public class WriterGatewayActor extends HTTPGatewayActor {
                 Box box = entry.getValue();
                 String id = entry.getKey();
 
-                Box _id = box.get("_id");
-                if (_id == null) {
-                    replyTo(message, HTTP.Status.BadRequest,
-                            "error", "No _id field for '%s'", id);
-                    return;
-                } else if (!id.equals(_id.getString())) {
-                    replyTo(message, HTTP.Status.BadRequest,
-                            "error", "Mismatching ids '%s' and '%s'",
-                            id, box.getString("_id"));
-                    return;
-                }
-
-                if (!box.has("_rev")) {
-                    replyTo(message, HTTP.Status.BadRequest,
-                            "error", "Box '%s' has no _rev field", id);
+                String error = checkBox(id, box);
+                if (error != null) {
+                    replyTo(message, HTTP.Status.BadRequest, "error", "%s", error);
                     return;
                 }
 
@@ -97,7 +85,38 @@ public class WriterGatewayActor extends HTTPGatewayActor {
         send(transaction, writerAddress);
     }
 
-    private Address findWriterActorForBase(CharSequence baseName) {
+    /**
+     * Make sure that {@code box} can be stored under the id {@code id}.
+     * Ids starting with {@code _} are reserved for the fixed sub paths of a
+     * base, like {@code /$base/_count}, so such boxes can not be written.
+     * They can still be deleted
+     * @param id the id the box is submitted under
+     * @param box the box to check
+     * @return a description of the problem or {@code null} if the box
+     *         can be added to a transaction
+     */
+    protected String checkBox(String id, Box box) {
+        Box _id = box.get("_id");
+        if (_id == null) {
+            return String.format("No _id field for '%s'", id);
+        } else if (!id.equals(_id.getString())) {
+            return String.format("Mismatching ids '%s' and '%s'",
+                                 id, box.getString("_id"));
+        }
+
+        if (!box.has("_rev")) {
+            return String.format("Box '%s' has no _rev field", id);
+        }
+
+        if (id.startsWith("_") && !box.has("_deleted")) {
+            return String.format("Ids starting with _ are reserved, got '%s'",
+                                 id);
+        }
+
+        return null;
+    }
+
+    protected Address findWriterActorForBase(CharSequence baseName) {
         Address writerAddress = getBus().lookup(
                                           WriterActor.baseAddress(baseName));
 
@@ -0,0 +1,118 @@
+package higgla.server;
+
+import juglr.Box;
+import juglr.MessageFormatException;
+import junit.framework.TestCase;
+import org.apache.lucene.document.Field;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Round trip tests for {@link BoxCodec}
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 16, 2010
+ */
+public class BoxCodecTest extends TestCase {
+
+    private BoxCodec codec;
+
+    @Override
+    protected void setUp() {
+        codec = new BoxCodec();
+    }
+
+    private Box roundTrip(Box box) {
+        byte[] data = codec.encode(box);
+        return codec.decode(data, 0, data.length);
+    }
+
+    public void testScalars() {
+        for (long l : new long[]{0, 1, -1, 63, -64, 64, Integer.MAX_VALUE,
+                                 Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(l, roundTrip(new Box(l)).getLong());
+        }
+        for (double d : new double[]{0, -0.5, 3.14, Double.MAX_VALUE,
+                                     Double.MIN_VALUE}) {
+            assertEquals(d, roundTrip(new Box(d)).getFloat());
+        }
+        assertTrue(roundTrip(new Box(true)).getBoolean());
+        assertFalse(roundTrip(new Box(false)).getBoolean());
+        assertEquals("", roundTrip(new Box("")).getString());
+        String unicode = "bl\u00e5b\u00e6r \u20ac";
+        assertEquals(unicode, roundTrip(new Box(unicode)).getString());
+    }
+
+    public void testNested() {
+        Box box = sampleBox();
+        Box decoded = roundTrip(box);
+        assertEquals(box.toString(), decoded.toString());
+        assertEquals(Box.Type.LIST, decoded.get("tags").getType());
+        assertEquals(Box.Type.MAP, decoded.get("address").getType());
+        assertEquals(2, decoded.get("address").getLong("zip"));
+    }
+
+    public void testCompressed() {
+        StringBuilder buf = new StringBuilder();
+        while (buf.length() < 10*BoxCodec.COMPRESS_THRESHOLD) {
+            buf.append("repetitive text ");
+        }
+        Box box = sampleBox().put("text", buf.toString());
+
+        byte[] data = codec.encode(box);
+        assertTrue((data[0] & BoxCodec.COMPRESSED) != 0);
+        assertTrue(data.length < buf.length());
+        assertEquals(box.toString(),
+                     codec.decode(data, 0, data.length).toString());
+    }
+
+    public void testEncodeReusesBuffers() {
+        Box first = sampleBox();
+        byte[] data = codec.encode(first);
+        codec.encode(Box.newMap().put("other", "box"));
+        assertEquals(first.toString(),
+                     codec.decode(data, 0, data.length).toString());
+    }
+
+    public void testDecodeFields() {
+        Box box = sampleBox();
+        Field body = new Field("_body", codec.encode(box), Field.Store.YES);
+        Box decoded = codec.decode(
+                       body, new HashSet<String>(Arrays.asList("_id", "tags")));
+
+        assertEquals(2, decoded.getMap().size());
+        assertEquals("box1", decoded.getString("_id"));
+        assertEquals(box.get("tags").toString(),
+                     decoded.get("tags").toString());
+    }
+
+    public void testLegacyJsonBody() {
+        Box box = sampleBox();
+        Field body = new Field("_body", box.toString(),
+                               Field.Store.YES, Field.Index.NO);
+        assertEquals(box.toString(), codec.decode(body).toString());
+    }
+
+    public void testTruncated() {
+        byte[] data = codec.encode(sampleBox());
+        try {
+            codec.decode(data, 0, data.length - 3);
+            fail("Decoding a truncated box should fail");
+        } catch (MessageFormatException e) {
+            // Expected
+        }
+    }
+
+    private static Box sampleBox() {
+        return Box.newMap()
+                  .put("_id", "box1")
+                  .put("_rev", 17)
+                  .put("score", 0.25)
+                  .put("active", true)
+                  .put("tags", Box.newList().add("a").add(-3).add(false))
+                  .put("address", Box.newMap()
+                                     .put("street", "Elm Street")
+                                     .put("zip", 2));
+    }
+}
@@ -0,0 +1,57 @@
+package higgla.server;
+
+import juglr.MessageFormatException;
+import junit.framework.TestCase;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Round trip tests for {@link Cursor} tokens
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 16, 2010
+ */
+public class CursorTest extends TestCase {
+
+    private static Cursor roundTrip(Cursor cursor) {
+        return Cursor.parse(cursor.toString());
+    }
+
+    public void testScore() {
+        Cursor cursor = roundTrip(new Cursor(new ScoreDoc(42, 1.5f)));
+        assertEquals(42, cursor.doc);
+        assertEquals(1, cursor.values.length);
+        assertEquals(1.5f, cursor.values[0]);
+    }
+
+    public void testSortValues() {
+        Object[] values = {Long.MIN_VALUE, -1L, 0L, Long.MAX_VALUE,
+                           Float.NaN, -0.0f, "", "a.b", "bl\u00e5b\u00e6r",
+                           null};
+        Cursor cursor = roundTrip(new Cursor(
+                 new SearchAfterCollector.FieldHit(7, Float.NaN, values)));
+        assertEquals(7, cursor.doc);
+        assertEquals(values.length, cursor.values.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("Value " + i, values[i], cursor.values[i]);
+        }
+    }
+
+    public void testDocOnly() {
+        Cursor cursor = roundTrip(
+                                new Cursor(new Object[0], Integer.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, cursor.doc);
+        assertEquals(0, cursor.values.length);
+    }
+
+    public void testInvalid() {
+        for (String token : new String[]{"", "x1.0", "l1", "l1..0",
+                                         "lxyz.0", "s0g.0"}) {
+            try {
+                Cursor.parse(token);
+                fail("Token '" + token + "' should be rejected");
+            } catch (MessageFormatException e) {
+                // Expected
+            }
+        }
+    }
+}
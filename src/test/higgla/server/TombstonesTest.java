@@ -0,0 +1,139 @@
+package higgla.server;
+
+import juglr.Box;
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Tests for {@link Tombstones} and which tombstones the
+ * {@link ChangesActor} lets through to the changes feed
+ *
+ * @author Mikkel Kamstrup Erlandsen <mailto:mke@statsbiblioteket.dk>
+ * @since Mar 16, 2010
+ */
+public class TombstonesTest extends TestCase {
+
+    private File baseDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        baseDir = File.createTempFile("higgla-tombstones", "");
+        baseDir.delete();
+        baseDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] children = baseDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        baseDir.delete();
+    }
+
+    public void testSince() throws IOException {
+        Tombstones tombstones = Tombstones.forBase(baseDir.getPath());
+        assertSame(tombstones, Tombstones.forBase(baseDir.getPath()));
+        assertTrue(tombstones.since(0, 10).isEmpty());
+
+        tombstones.add(deletes(2, "b", 5, "e"));
+        tombstones.add(deletes(9, "i"));
+        assertEquals(deletes(2, "b", 5, "e", 9, "i"), tombstones.since(0, 10));
+        assertEquals(deletes(5, "e", 9, "i"), tombstones.since(2, 10));
+        assertEquals(deletes(2, "b"), tombstones.since(0, 1));
+        assertTrue(tombstones.since(9, 10).isEmpty());
+    }
+
+    public void testTornRecord() throws IOException {
+        File file = new File(baseDir, "higgla.tombstones");
+        DataOutputStream out =
+                          new DataOutputStream(new FileOutputStream(file));
+        out.writeLong(3);
+        out.writeUTF("c");
+        int complete = out.size();
+        out.writeLong(4);
+        out.writeShort(10);
+        out.close();
+
+        Tombstones tombstones = Tombstones.forBase(baseDir.getPath());
+        assertEquals(deletes(3, "c"), tombstones.since(0, 10));
+        assertEquals(complete, file.length());
+
+        // New records go after the last complete one
+        tombstones.add(deletes(6, "f"));
+        assertEquals(complete + 8 + 2 + 1, file.length());
+    }
+
+    public void testVisibility() throws IOException {
+        Directory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(
+                               dir, new StandardAnalyzer(Version.LUCENE_30),
+                               true, IndexWriter.MaxFieldLength.LIMITED);
+        writer.addDocument(new DocumentBuilder().build(
+                              Box.newMap().put("_id", "a").put("_rev", 4)));
+        writer.commit(Collections.singletonMap(
+                                          WriterActor.LAST_REVISION, "6"));
+        writer.close();
+
+        IndexReader reader = IndexReader.open(dir, true);
+        try {
+            assertEquals(6, ChangesActor.committedRevision(reader));
+
+            // 'a' was deleted at 2 and written again at 4. 'b' is gone.
+            // The delete of 'a' at 5 was never committed and 'c' was deleted
+            // after the reader was opened
+            SortedMap<Long,String> deletes =
+                        deletes(2, "a", 3, "b", 5, "a", 7, "c");
+            SortedMap<Long,String> visible = ChangesActor.visible(
+                       deletes, ChangesActor.committedRevision(reader));
+            assertEquals(deletes(2, "a", 3, "b", 5, "a"), visible);
+
+            assertTrue(ChangesActor.isDeleted(reader, "a", 2));
+            assertTrue(ChangesActor.isDeleted(reader, "b", 3));
+            assertFalse(ChangesActor.isDeleted(reader, "a", 5));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testNoCommittedRevision() throws IOException {
+        Directory dir = new RAMDirectory();
+        new IndexWriter(dir, new StandardAnalyzer(Version.LUCENE_30),
+                        true, IndexWriter.MaxFieldLength.LIMITED).close();
+
+        IndexReader reader = IndexReader.open(dir, true);
+        try {
+            long committed = ChangesActor.committedRevision(reader);
+            assertEquals(Long.MAX_VALUE, committed);
+            assertEquals(deletes(7, "c"),
+                         ChangesActor.visible(deletes(7, "c"), committed));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* Build a map from alternating revisions and ids */
+    private static SortedMap<Long,String> deletes(Object... revsAndIds) {
+        SortedMap<Long,String> deletes = new TreeMap<Long,String>();
+        for (int i = 0; i < revsAndIds.length; i += 2) {
+            deletes.put(((Integer)revsAndIds[i]).longValue(),
+                        (String)revsAndIds[i + 1]);
+        }
+        return deletes;
+    }
+}